@@ -0,0 +1,78 @@
+package incjc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * End-to-end incremental builds of a synthetic project:
+ * - noop: nothing changed;
+ * - leafEdit: method body of a class nothing depends on is changed;
+ * - coreEdit: constant of a class with the most dependents is changed, so that its direct dependents are recompiled.
+ * Edit is made before each invocation, outside of measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BuildBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"5"})
+    public int depth;
+
+    @Param({"noop", "leafEdit", "coreEdit"})
+    public String scenario;
+
+    private SyntheticProject project;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.createAndBuild(classCount, fanOut, depth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void edit() {
+        switch (scenario) {
+            case "noop":
+                break;
+            case "leafEdit":
+                project.editBody(project.leafClass());
+                break;
+            case "coreEdit":
+                project.editAbi(project.coreClass());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    @Benchmark
+    public boolean build() {
+        return project.build();
+    }
+}
@@ -0,0 +1,100 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Class file examination and staging of class files
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClassFilesBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"5"})
+    public int depth;
+
+    private SyntheticProject project;
+    private Set<Path> classFiles;
+    private Set<String> classNames;
+    private Path copyDir;
+    private Path syncedDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.createAndBuild(classCount, fanOut, depth);
+        classFiles = IncJC.findAllClassFiles(project.classDir);
+        classNames = new MetaInfo(project.metaInfoPath()).classes.keySet();
+        syncedDir = Files.createTempDirectory(IncJC.TMP_INCJC_PREFIX);
+        IncJC.syncClassFiles(project.classDir, syncedDir, classNames);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.delete();
+        FileUtils.deleteQuietly(syncedDir.toFile());
+    }
+
+    @Setup(Level.Invocation)
+    public void createCopyDir() throws IOException {
+        copyDir = Files.createTempDirectory(IncJC.TMP_INCJC_PREFIX);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopyDir() {
+        FileUtils.deleteQuietly(copyDir.toFile());
+    }
+
+    @Benchmark
+    public Collection<ClassFileDesc> examineNative() {
+        return new NativeClassFileExaminer().apply(classFiles);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public Collection<ClassFileDesc> examineJdk() {
+        return new JdkBasedClassFileExaminer().apply(classFiles);
+    }
+
+    @Benchmark
+    public Set<String> syncClassFiles() {
+        return IncJC.syncClassFiles(project.classDir, copyDir, classNames);
+    }
+
+    // all class files are the same: only compared, none written
+    @Benchmark
+    public Set<String> syncUnchangedClassFiles() {
+        return IncJC.syncClassFiles(project.classDir, syncedDir, classNames);
+    }
+
+    @Benchmark
+    public void linkClassFiles() {
+        IncJC.linkClassFiles(project.classDir, copyDir, classNames);
+    }
+}
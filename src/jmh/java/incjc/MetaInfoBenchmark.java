@@ -0,0 +1,87 @@
+package incjc;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Metainfo load / save and dependency graph traversal
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaInfoBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"5"})
+    public int depth;
+
+    private SyntheticProject project;
+    private MetaInfo metaInfo;
+    private Set<String> leafSource;
+    private Set<String> coreSource;
+    private String savedSource;
+    private SourceState[] savedStates;
+    private int saveCount;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.createAndBuild(classCount, fanOut, depth);
+        metaInfo = new MetaInfo(project.metaInfoPath());
+        leafSource = Collections.singleton(project.sourceFile(project.leafClass()).toAbsolutePath().toString());
+        coreSource = Collections.singleton(project.sourceFile(project.coreClass()).toAbsolutePath().toString());
+        savedSource = leafSource.iterator().next();
+        SourceState state = metaInfo.sources.get(savedSource);
+        savedStates = new SourceState[]{
+            new SourceState(state.hash, state.size, state.mtime),
+            new SourceState(state.hash, state.size, state.mtime + 1)
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.delete();
+    }
+
+    @Benchmark
+    public MetaInfo load() {
+        return new MetaInfo(project.metaInfoPath());
+    }
+
+    // single change appended to journal; snapshot is rewritten from time to time, once journal grows large
+    @Benchmark
+    public void saveSingleChange() {
+        metaInfo.addSources(Collections.singletonMap(savedSource, savedStates[saveCount++ % 2]));
+        metaInfo.save();
+    }
+
+    @Benchmark
+    public Set<String> affectedSourcesOfLeaf() {
+        return metaInfo.affectedSources(leafSource);
+    }
+
+    @Benchmark
+    public Set<String> affectedSourcesOfCore() {
+        return metaInfo.affectedSources(coreSource);
+    }
+}
@@ -0,0 +1,104 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Change detection: source tree walk (with and without directory snapshot), stat comparison, hashing of files with different stats
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"1000", "10000"})
+    public int classCount;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"5"})
+    public int depth;
+
+    private SyntheticProject project;
+    private MetaInfo metaInfo;
+    private Set<String> allSources;
+    private Map<String, SourceState> updatedSourceStates;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = SyntheticProject.createAndBuild(classCount, fanOut, depth);
+        metaInfo = new MetaInfo(project.metaInfoPath());
+        allSources = IncJC.findAllSources(project.sourceDir.toString());
+        // every file is considered updated, so that all of them are hashed
+        updatedSourceStates = IncJC.findUpdatedSourceStates(allSources, Collections.emptyMap());
+        // directories just created would be listed anyway, see SourceTree
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        try (Stream<Path> files = Files.walk(project.sourceDir)) {
+            for (Path dir : files.filter(Files::isDirectory).collect(Collectors.toList())) {
+                Files.setLastModifiedTime(dir, past);
+            }
+        }
+        SourceTree.scan(project.sourceDir.toString(), project.metaInfoPath()).save(project.metaInfoPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        project.delete();
+    }
+
+    @Benchmark
+    public Set<String> findAllSources() {
+        return IncJC.findAllSources(project.sourceDir.toString());
+    }
+
+    // no snapshot: all directories listed in parallel
+    @Benchmark
+    public Set<String> scanSourceTree() {
+        return SourceTree.scan(project.sourceDir.toString(), project.root.resolve("no-meta").toString()).sources();
+    }
+
+    // no directories changed: directories stat-ed only
+    @Benchmark
+    public Set<String> scanSourceTreeFromSnapshot() {
+        return SourceTree.scan(project.sourceDir.toString(), project.metaInfoPath()).sources();
+    }
+
+    // no changes: stats only
+    @Benchmark
+    public Map<String, SourceState> findUpdatedSourceStates() {
+        return IncJC.findUpdatedSourceStates(allSources, metaInfo.sources);
+    }
+
+    @Benchmark
+    public Map<String, SourceState> findUpdatedSourceStatesHashingAll() {
+        return IncJC.findUpdatedSourceStates(allSources, Collections.emptyMap());
+    }
+
+    @Benchmark
+    public Map<String, SourceState> findChangedAndNewSources() {
+        return IncJC.findChangedAndNewSources(updatedSourceStates, metaInfo.sources);
+    }
+}
@@ -0,0 +1,205 @@
+package incjc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/*
+ * Generator of synthetic source trees for benchmarks. Classes are arranged in layers: classes of each layer depend on
+ * classes of the next one (chosen randomly, but reproducibly), so that the last layer holds "core" classes with the
+ * most dependents, and the first one holds "leaf" classes nothing depends on. Classes are grouped into packages of
+ * PACKAGE_SIZE classes.
+ *
+ * Can be run standalone: SyntheticProject <dir> <class count> <fan-out> <depth>
+ */
+public class SyntheticProject {
+
+    private static final int PACKAGE_SIZE = 50;
+
+    public final Path root;
+    public final Path sourceDir;
+    public final Path classDir;
+    public final Path homeDir;
+
+    private final int classCount;
+    private final int fanOut;
+    private final int depth;
+
+    private final List<List<Integer>> dependencies = new ArrayList<>();
+    private final int[] bodyVersions;
+    private final int[] abiVersions;
+
+    public SyntheticProject(Path root, int classCount, int fanOut, int depth) {
+        this.root = root;
+        this.sourceDir = root.resolve("src");
+        this.classDir = root.resolve("classes");
+        this.homeDir = root.resolve("home");
+        this.classCount = classCount;
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.bodyVersions = new int[classCount];
+        this.abiVersions = new int[classCount];
+
+        Random random = new Random(classCount * 31L + fanOut * 7L + depth);
+        for (int i = 0; i < classCount; i++) {
+            List<Integer> deps = new ArrayList<>();
+            int layer = layerOf(i);
+            if (layer < depth - 1 && layerStart(layer + 2) > layerStart(layer + 1)) {
+                int nextLayerStart = layerStart(layer + 1);
+                int nextLayerSize = layerStart(layer + 2) - nextLayerStart;
+                for (int j = 0; j < Math.min(fanOut, nextLayerSize); j++) {
+                    int dep = nextLayerStart + random.nextInt(nextLayerSize);
+                    if (!deps.contains(dep)) {
+                        deps.add(dep);
+                    }
+                }
+            }
+            dependencies.add(deps);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.err.println("Usage: SyntheticProject <dir> <class count> <fan-out> <depth>");
+            System.exit(1);
+        }
+        new SyntheticProject(Paths.get(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+            Integer.parseInt(args[3])).generate();
+    }
+
+    // creates a temporary project, generates its sources and builds it, with incjc metainfo kept in the project
+    public static SyntheticProject createAndBuild(int classCount, int fanOut, int depth) throws IOException {
+        SyntheticProject project = new SyntheticProject(Files.createTempDirectory("incjc-bench-"),
+            classCount, fanOut, depth);
+        project.generate();
+        project.useAsHome();
+        if (!project.build()) {
+            throw new IllegalStateException("Failed to build synthetic project in " + project.root);
+        }
+        return project;
+    }
+
+    public void generate() {
+        for (int i = 0; i < classCount; i++) {
+            writeSource(i);
+        }
+    }
+
+    // metainfo directory is derived from user home
+    public void useAsHome() throws IOException {
+        Files.createDirectories(homeDir);
+        System.setProperty("user.home", homeDir.toString());
+    }
+
+    public boolean build() {
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM));
+            return IncJC.compile(classDir.toString(), sourceDir.toString());
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    public String metaInfoPath() {
+        return IncJC.metaInfoPathForSourceDir(sourceDir.toAbsolutePath().toString());
+    }
+
+    public void delete() {
+        FileUtils.deleteQuietly(root.toFile());
+    }
+
+    public int leafClass() {
+        return 0;
+    }
+
+    public int coreClass() {
+        return layerStart(depth - 1);
+    }
+
+    public Path sourceFile(int cls) {
+        return sourceDir.resolve(packageName(cls)).resolve(className(cls) + ".java");
+    }
+
+    // changes method body only, so that ABI stays the same
+    public void editBody(int cls) {
+        bodyVersions[cls]++;
+        writeSource(cls);
+    }
+
+    // changes constant inlined into direct dependents, so that they are recompiled
+    public void editAbi(int cls) {
+        abiVersions[cls]++;
+        writeSource(cls);
+    }
+
+    private void writeSource(int cls) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(packageName(cls)).append(";\n\n");
+        sb.append("public class ").append(className(cls)).append(" {\n");
+        sb.append("    public static final int VERSION = ").append(abiVersions[cls]).append(";\n\n");
+        List<Integer> deps = dependencies.get(cls);
+        for (int dep : deps) {
+            sb.append("    private final ").append(qualifiedName(dep)).append(" f").append(dep)
+                .append(" = new ").append(qualifiedName(dep)).append("();\n");
+        }
+        sb.append("\n    public int value() {\n");
+        sb.append("        int result = ").append(bodyVersions[cls]).append(";\n");
+        for (int dep : deps) {
+            sb.append("        result += f").append(dep).append(".value() + ").append(qualifiedName(dep))
+                .append(".VERSION;\n");
+        }
+        sb.append("        return result;\n    }\n}\n");
+
+        Path file = sourceFile(cls);
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(file, sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int layerOf(int cls) {
+        for (int layer = 0; layer < depth; layer++) {
+            if (cls < layerStart(layer + 1)) {
+                return layer;
+            }
+        }
+        return depth - 1;
+    }
+
+    // layers grow towards leaves, each being twice as large as the next one
+    private int layerStart(int layer) {
+        if (layer >= depth) {
+            return classCount;
+        }
+        int weightTotal = (1 << depth) - 1;
+        int weightBefore = 0;
+        for (int l = 0; l < layer; l++) {
+            weightBefore += 1 << (depth - 1 - l);
+        }
+        return (int) ((long) classCount * weightBefore / weightTotal);
+    }
+
+    private static String packageName(int cls) {
+        return "p" + cls / PACKAGE_SIZE;
+    }
+
+    private static String className(int cls) {
+        return "C" + cls;
+    }
+
+    private static String qualifiedName(int cls) {
+        return packageName(cls) + "." + className(cls);
+    }
+}
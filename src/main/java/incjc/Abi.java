@@ -0,0 +1,76 @@
+package incjc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.codec.digest.DigestUtils;
+
+// Part of a class visible to other classes at compile time. Private and synthetic members are not included, while
+// package-private ones are, since dependents from the same package can use them.
+public abstract class Abi {
+
+    public static final String CLASS_KEY = "class";
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    // flags which do not affect compilation of dependents
+    private static final int CLASS_FLAGS_IGNORED = 0x0020;          // ACC_SUPER
+    private static final int FIELD_FLAGS_IGNORED = 0x0040 | 0x0080; // ACC_VOLATILE, ACC_TRANSIENT
+    private static final int METHOD_FLAGS_IGNORED = 0x0020 | 0x0100 | 0x0800; // ACC_SYNCHRONIZED, ACC_NATIVE, ACC_STRICT
+
+    // element key ("class", "field:<name>" or "method:<name><descriptor>") -> element description
+    public static Map<String, String> elements(ClassFile cf) {
+        Map<String, String> result = new TreeMap<>();
+
+        List<String> interfaces = new ArrayList<>(cf.interfaceNames);
+        interfaces.sort(null);
+        result.put(CLASS_KEY, String.format("%x %x %s extends %s implements %s signature %s",
+            cf.accessFlags & ~CLASS_FLAGS_IGNORED, cf.innerClassAccessFlags, cf.className, cf.superClassName,
+            interfaces, cf.signature));
+
+        for (ClassFile.Member f : cf.fields) {
+            if (isVisible(f)) {
+                result.put(fieldKey(f.name), String.format("%x %s signature %s = %s",
+                    f.accessFlags & ~FIELD_FLAGS_IGNORED, f.descriptor, f.signature, f.constantValue));
+            }
+        }
+
+        for (ClassFile.Member m : cf.methods) {
+            if (isVisible(m)) {
+                List<String> exceptions = new ArrayList<>(m.exceptions);
+                exceptions.sort(null);
+                result.put(methodKey(m.name, m.descriptor), String.format("%x signature %s throws %s",
+                    m.accessFlags & ~METHOD_FLAGS_IGNORED, m.signature, exceptions));
+            }
+        }
+
+        return result;
+    }
+
+    public static String fingerprint(ClassFile cf) {
+        StringBuilder sb = new StringBuilder();
+        elements(cf).forEach((key, desc) -> sb.append(key).append(' ').append(desc).append('\n'));
+        return DigestUtils.sha256Hex(sb.toString());
+    }
+
+    public static String fieldKey(String name) {
+        return "field:" + name;
+    }
+
+    public static String methodKey(String name, String descriptor) {
+        return "method:" + name + descriptor;
+    }
+
+    // field or method name of element key
+    public static String elementName(String key) {
+        int start = key.indexOf(':') + 1;
+        int end = key.indexOf('(', start);
+        return end == -1 ? key.substring(start) : key.substring(start, end);
+    }
+
+    private static boolean isVisible(ClassFile.Member member) {
+        return (member.accessFlags & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0;
+    }
+}
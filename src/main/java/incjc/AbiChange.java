@@ -0,0 +1,114 @@
+package incjc;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// What has changed in ABI of a class, so that only dependents using changed members could be recompiled
+public class AbiChange {
+
+    // dependents are affected regardless of members they use: class itself was added / removed / changed its
+    // signature, or compile-time constant was changed (constants are inlined, leaving no references to them)
+    public static final AbiChange CLASS_LEVEL = new AbiChange(true, Collections.emptySet());
+
+    public static final AbiChange NONE = new AbiChange(false, Collections.emptySet());
+
+    private static final int ACC_STATIC = 0x0008;
+
+    public final boolean classLevel;
+    public final Set<String> memberNames; // names of added, removed and changed fields and methods
+
+    private AbiChange(boolean classLevel, Set<String> memberNames) {
+        this.classLevel = classLevel;
+        this.memberNames = memberNames;
+    }
+
+    public static AbiChange between(ClassFile oldCf, ClassFile newCf) {
+        Map<String, String> oldElements = Abi.elements(oldCf);
+        Map<String, String> newElements = Abi.elements(newCf);
+        if (!Objects.equals(oldElements.get(Abi.CLASS_KEY), newElements.get(Abi.CLASS_KEY))) {
+            return CLASS_LEVEL;
+        }
+
+        Set<String> keys = new HashSet<>(oldElements.keySet());
+        keys.addAll(newElements.keySet());
+        Set<String> names = new HashSet<>();
+        for (String key : keys) {
+            if (!Objects.equals(oldElements.get(key), newElements.get(key))) {
+                String name = Abi.elementName(key);
+                if (key.startsWith(Abi.fieldKey("")) && (isConstant(oldCf, name) || isConstant(newCf, name))) {
+                    return CLASS_LEVEL;
+                }
+                if (!oldElements.containsKey(key) && mayShadow(key, name, oldElements, newElements, newCf)) {
+                    return CLASS_LEVEL;
+                }
+                names.add(name);
+            }
+        }
+        return new AbiChange(false, names);
+    }
+
+    // changes of supertypes are inherited by subclasses
+    public AbiChange merge(AbiChange other) {
+        if (classLevel || other.classLevel) {
+            return CLASS_LEVEL;
+        }
+        Set<String> names = new HashSet<>(memberNames);
+        names.addAll(other.memberNames);
+        return new AbiChange(false, names);
+    }
+
+    public boolean isEmpty() {
+        return !classLevel && memberNames.isEmpty();
+    }
+
+    // subclasses are always affected, since they may override or implement changed methods
+    public boolean affects(String className, ClassFile dependent) {
+        if (isEmpty()) {
+            return false;
+        }
+        if (classLevel
+            || className.equals(dependent.superClassName)
+            || dependent.interfaceNames.contains(className))
+        {
+            return true;
+        }
+        for (String name : memberNames) {
+            if (dependent.memberRefs.contains(ClassFile.memberRef(className, name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Dependents may be affected by a member added without referencing it by name: a new overload may be picked over
+    // a method of the same name of another class (e.g. of an enclosing class, called by simple name), and a new static
+    // member may shadow or clash with a member statically imported from another class along with this class members
+    private static boolean mayShadow(String key, String name, Map<String, String> oldElements,
+        Map<String, String> newElements, ClassFile newCf)
+    {
+        if (key.startsWith(Abi.fieldKey(""))) {
+            return newCf.fields.stream().anyMatch(f -> f.name.equals(name) && (f.accessFlags & ACC_STATIC) != 0);
+        }
+        if (name.equals("<init>")) {
+            return false; // constructors are only called by class name, so dependents using them refer to them
+        }
+        // a method replacing one of the same name (e.g. with parameters changed) is not an overload
+        String overloadPrefix = Abi.methodKey(name, "(");
+        boolean overload = oldElements.keySet().stream()
+            .anyMatch(oldKey -> oldKey.startsWith(overloadPrefix) && newElements.containsKey(oldKey));
+        return overload || newCf.methods.stream()
+            .anyMatch(m -> key.equals(Abi.methodKey(m.name, m.descriptor)) && (m.accessFlags & ACC_STATIC) != 0);
+    }
+
+    private static boolean isConstant(ClassFile cf, String fieldName) {
+        return cf.fields.stream().anyMatch(f -> f.name.equals(fieldName) && f.constantValue != null);
+    }
+
+    @Override
+    public String toString() {
+        return classLevel ? "<class>" : memberNames.toString();
+    }
+}
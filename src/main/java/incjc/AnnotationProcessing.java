@@ -0,0 +1,689 @@
+package incjc;
+
+import com.google.common.collect.Sets;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Annotation processors found on external classpath, and files they generate.
+ *
+ * Processors are classified the same way as by Gradle, by META-INF/gradle/incremental.annotation.processors of the
+ * classpath entry providing them. An isolating processor generates each file from a single originating type, so the
+ * file only has to be regenerated once the source of that type is recompiled. An aggregating processor generates files
+ * from all the types annotated with annotations it supports, so sources of those are recompiled (and reprocessed)
+ * together with any other sources compiled; aggregating processors are not run in later waves. Any other processor
+ * (including a "dynamic" one not reporting its kind through supported options) makes each change lead to
+ * recompilation of all sources, as does a change of processors themselves.
+ *
+ * Generated files are recorded in metainfo as a graph: source -> files generated from it by isolating processors,
+ * source -> AGGREGATED -> files generated by aggregating processors, and UNATTRIBUTED -> files of unknown origin (e.g.
+ * generated by external javac, which does not report originating elements). Generated sources are kept in
+ * processing/generated subdirectory of metainfo directory and are recompiled as any other source, once classes they
+ * depend on change.
+ */
+public class AnnotationProcessing implements AutoCloseable {
+
+    static final String AGGREGATED = "*";
+    static final String UNATTRIBUTED = "?";
+
+    private static final String PROCESSING_DIR = "processing";
+    private static final String GENERATED_DIR = "generated";
+    private static final String PROCESSORS_FILE = "processors.txt";
+    private static final String FIELD_SEP = "->";
+
+    private static final String SERVICES_FILE = "META-INF/services/javax.annotation.processing.Processor";
+    private static final String INCREMENTAL_FILE = "META-INF/gradle/incremental.annotation.processors";
+    private static final String ISOLATING_OPTION = "org.gradle.annotation.processing.isolating";
+    private static final String AGGREGATING_OPTION = "org.gradle.annotation.processing.aggregating";
+
+    enum Kind { ISOLATING, AGGREGATING, NON_INCREMENTAL }
+
+    private final Path processingDir;
+    private final Path generatedDir;
+    private final List<Path> entries;
+    private final Map<String, Kind> processors = new LinkedHashMap<>();
+    private final List<String> lines; // as in processors file: processor, its kind and stamp of its classpath entry
+    private final boolean changed;
+    private final List<Round> rounds = new ArrayList<>();
+
+    @Nullable
+    private URLClassLoader classLoader;
+
+    private AnnotationProcessing(String metaDir, List<Path> entries, boolean classpathChanged) {
+        this.processingDir = Paths.get(metaDir, PROCESSING_DIR);
+        this.generatedDir = processingDir.resolve(GENERATED_DIR);
+        this.entries = entries;
+        List<String> savedLines = readLines();
+        // processors are only looked for once the classpath changes
+        this.lines = classpathChanged || savedLines == null ? discover() : savedLines;
+        this.changed = !lines.equals(savedLines != null ? savedLines : Collections.emptyList());
+        for (String line : lines) {
+            String[] fields = line.split(FIELD_SEP, 3);
+            processors.put(fields[0], Kind.valueOf(fields[1]));
+        }
+    }
+
+    public static AnnotationProcessing of(String metaDir, @Nullable String externalClasspath,
+        boolean classpathChanged)
+    {
+        return new AnnotationProcessing(metaDir, ExternalClasspath.entries(externalClasspath), classpathChanged);
+    }
+
+    public boolean isEmpty() {
+        return processors.isEmpty();
+    }
+
+    public boolean hasAggregating() {
+        return processors.containsValue(Kind.AGGREGATING);
+    }
+
+    // Reason to recompile all sources instead of the ones changed, null if there is none. Changed processors may
+    // generate different files for the same sources, so those are regenerated even if no sources changed.
+    @Nullable
+    public String fullRebuildReason(MetaInfo metaInfo, boolean compiling, boolean canTrackGeneratedFiles) {
+        if (changed) {
+            return "Annotation processors changed.";
+        }
+        if (!compiling) {
+            return null;
+        }
+        if (!processors.isEmpty() && !canTrackGeneratedFiles) {
+            return "Files generated by annotation processors are not tracked with external javac.";
+        }
+        List<String> nonIncremental = processors.entrySet().stream()
+            .filter(processor -> processor.getValue() == Kind.NON_INCREMENTAL)
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        if (!nonIncremental.isEmpty()) {
+            return "Annotation processors not known to be incremental: " + String.join(", ", nonIncremental) + ".";
+        }
+        if (!metaInfo.generated.dependentsOf(UNATTRIBUTED).isEmpty()) {
+            return "Origin of some files generated by annotation processors is not known.";
+        }
+        return null;
+    }
+
+    // Files generated from the sources given, directly or through other generated files; includes AGGREGATED (and
+    // files generated by aggregating processors), if some of the sources were processed by aggregating processors
+    public static Set<String> generatedFiles(MetaInfo metaInfo, Set<String> sources) {
+        Set<String> direct = new HashSet<>();
+        for (String src : sources) {
+            direct.addAll(metaInfo.generated.dependentsOf(src));
+        }
+        return direct.isEmpty() ? Collections.emptySet() : metaInfo.generated.reachableFrom(direct);
+    }
+
+    // sources processed by aggregating processors in previous builds
+    public static Set<String> aggregatingOrigins(MetaInfo metaInfo) {
+        return new HashSet<>(metaInfo.generated.dependenciesOf(AGGREGATED));
+    }
+
+    // Files generated from deleted sources, which are not going to be regenerated: files generated by aggregating
+    // processors are, as long as some of the sources those processed remain
+    public Set<String> deletedFiles(MetaInfo metaInfo, Set<String> deletedSources) {
+        Set<String> result = generatedFiles(metaInfo, deletedSources);
+        if (result.contains(AGGREGATED) && hasAggregating()
+            && !deletedSources.containsAll(aggregatingOrigins(metaInfo)))
+        {
+            Set<String> regenerated = new HashSet<>(generatedFiles(metaInfo, Collections.singleton(AGGREGATED)));
+            regenerated.add(AGGREGATED);
+            return Sets.difference(result, regenerated).immutableCopy();
+        }
+        return result;
+    }
+
+    // Generated sources are not compiled as they are, but regenerated from their originating sources instead, so that
+    // each generated file is regenerated once, by the wave compiling its origin. Sources processed by aggregating
+    // processors are added to the first wave, if anything is compiled (or some of those are deleted).
+    public Set<String> sourcesToCompile(MetaInfo metaInfo, Set<String> sources, Set<String> excludedSources,
+        boolean firstWave)
+    {
+        if ((sources.isEmpty() || metaInfo.generated.edgeCount() == 0) && !hasAggregating()) {
+            return Sets.difference(sources, excludedSources).immutableCopy();
+        }
+        Set<String> result = new HashSet<>();
+        Set<String> visited = new HashSet<>();
+        List<String> queue = new ArrayList<>(sources);
+        for (int i = 0; i < queue.size(); i++) {
+            String src = queue.get(i);
+            if (!visited.add(src) || src.equals(UNATTRIBUTED)) {
+                continue;
+            }
+            Set<String> origins = metaInfo.generated.dependenciesOf(src);
+            if (origins.isEmpty()) {
+                result.add(src);
+            } else {
+                queue.addAll(origins);
+                if (origins.contains(AGGREGATED)) {
+                    queue.addAll(aggregatingOrigins(metaInfo));
+                }
+            }
+        }
+        if (firstWave && hasAggregating()) {
+            Set<String> aggregatingOrigins = aggregatingOrigins(metaInfo);
+            if (!result.isEmpty() || !Collections.disjoint(excludedSources, aggregatingOrigins)) {
+                result.addAll(aggregatingOrigins);
+            }
+        }
+        result.removeAll(excludedSources);
+        result.remove(AGGREGATED);
+        return result;
+    }
+
+    // javac invocation running processors; generated files are kept in temporary directories until commit
+    public Round newRound(Collection<String> sources, Path classOutput, Path classPath, boolean runAggregating) {
+        Round round = new Round(sources, classOutput, classPath, runAggregating);
+        rounds.add(round);
+        return round;
+    }
+
+    // path of a source file given relatively to a source directory, generated or not
+    public String sourcePath(MetaInfo metaInfo, String sourceDir, String relativeSourceFile) {
+        String generated = generatedDir.resolve(relativeSourceFile).toString();
+        return !metaInfo.generated.dependenciesOf(generated).isEmpty() ? generated
+            : sourceDir + File.separator + relativeSourceFile;
+    }
+
+    // should be called before metainfo is updated with classes compiled, so that generated sources are known
+    public void updateMetaInfo(MetaInfo metaInfo, Set<String> staleFiles) {
+        metaInfo.deleteGeneratedFiles(staleFiles);
+        for (Round round : rounds) {
+            for (String origin : round.aggregatingOrigins) {
+                metaInfo.addGeneratedFile(origin, AGGREGATED);
+            }
+            for (GeneratedFile file : round.files) {
+                String path = round.targetPath(file).toString();
+                for (String origin : file.origins) {
+                    metaInfo.addGeneratedFile(origin, path);
+                }
+            }
+            BuildReport.count("filesGenerated", round.files.size());
+        }
+    }
+
+    // Files generated by rounds replace stale ones (unless contents are the same), stale ones not generated again are
+    // deleted; should be called once compiled classes are copied to the classpath (class files generated are copied as
+    // well, unless compiled there); returns files written or deleted
+    public Set<Path> commit(Set<String> staleFiles) {
+        Set<Path> result = new HashSet<>();
+        try {
+            Set<Path> targets = new HashSet<>();
+            for (Round round : rounds) {
+                for (GeneratedFile file : round.files) {
+                    Path src = (file.classOutput ? round.classOutput : round.sourceOutput)
+                        .resolve(file.relativePath);
+                    Path dst = round.targetPath(file);
+                    targets.add(dst);
+                    if (!src.equals(dst) && IncJC.syncFile(src, dst)) {
+                        result.add(dst);
+                    }
+                }
+            }
+            for (String file : staleFiles) {
+                if (!file.equals(AGGREGATED) && !targets.contains(Paths.get(file))
+                    && Files.deleteIfExists(Paths.get(file)))
+                {
+                    result.add(Paths.get(file));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update files generated by annotation processors", e);
+        }
+        return result;
+    }
+
+    // processors file is written after metainfo, same as external classpath stamps
+    public void save() {
+        Path file = processingDir.resolve(PROCESSORS_FILE);
+        if (!changed && Files.exists(file)) {
+            return;
+        }
+        try {
+            Files.createDirectories(processingDir);
+            Path tmpFile = processingDir.resolve(PROCESSORS_FILE + ".tmp");
+            try (PrintWriter w = new PrintWriter(tmpFile.toFile())) {
+                lines.forEach(w::println);
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save annotation processors info to " + processingDir, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        rounds.forEach(round -> FileUtils.deleteQuietly(round.sourceOutput.toFile()));
+        if (classLoader != null) {
+            try {
+                classLoader.close();
+            } catch (IOException e) {
+                debug("Failed to close annotation processors class loader: " + e);
+            }
+        }
+    }
+
+    @Nullable
+    private List<String> readLines() {
+        Path file = processingDir.resolve(PROCESSORS_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return Files.readAllLines(file);
+        } catch (IOException e) {
+            debug("Failed to read " + file + ": " + e);
+            return null;
+        }
+    }
+
+    // processors listed by the same class name in several classpath entries are loaded from the first one
+    private List<String> discover() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Path entry : entries) {
+            List<String> names = readEntryFile(entry, SERVICES_FILE);
+            if (names.isEmpty()) {
+                continue;
+            }
+            Map<String, String> declaredKinds = new HashMap<>();
+            for (String line : readEntryFile(entry, INCREMENTAL_FILE)) {
+                String[] fields = line.split(",");
+                if (fields.length == 2) {
+                    declaredKinds.put(fields[0].trim(), fields[1].trim().toUpperCase(Locale.ROOT));
+                }
+            }
+            String stamp = ExternalClasspath.stamp(entry);
+            for (String name : names) {
+                if (!result.containsKey(name)) {
+                    result.put(name, name + FIELD_SEP + kindOf(name, declaredKinds.get(name)) + FIELD_SEP + stamp);
+                }
+            }
+        }
+        debug("Annotation processors: " + result.keySet());
+        return new ArrayList<>(result.values());
+    }
+
+    private Kind kindOf(String processor, @Nullable String declaredKind) {
+        if ("ISOLATING".equals(declaredKind)) {
+            return Kind.ISOLATING;
+        } else if ("AGGREGATING".equals(declaredKind)) {
+            return Kind.AGGREGATING;
+        } else if ("DYNAMIC".equals(declaredKind)) {
+            try {
+                Set<String> options = newProcessor(processor).getSupportedOptions();
+                if (options.contains(AGGREGATING_OPTION)) {
+                    return Kind.AGGREGATING;
+                } else if (options.contains(ISOLATING_OPTION)) {
+                    return Kind.ISOLATING;
+                }
+            } catch (RuntimeException | LinkageError e) {
+                debug("Failed to find out kind of annotation processor " + processor + ": " + e);
+            }
+        }
+        return Kind.NON_INCREMENTAL;
+    }
+
+    // lines of a text file in a classpath entry, without comments and blank lines
+    private static List<String> readEntryFile(Path entry, String name) {
+        try {
+            if (Files.isDirectory(entry)) {
+                Path file = entry.resolve(name);
+                return Files.isRegularFile(file) ? readEntryFile(Files.newInputStream(file)) : Collections.emptyList();
+            } else if (Files.isRegularFile(entry)) {
+                try (ZipFile jar = new ZipFile(entry.toFile())) {
+                    ZipEntry zipEntry = jar.getEntry(name);
+                    return zipEntry != null ? readEntryFile(jar.getInputStream(zipEntry)) : Collections.emptyList();
+                }
+            }
+            return Collections.emptyList();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + name + " from classpath entry " + entry, e);
+        }
+    }
+
+    private static List<String> readEntryFile(InputStream in) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return reader.lines()
+                .map(line -> line.replaceFirst("#.*", "").trim())
+                .filter(line -> !line.isEmpty())
+                .collect(Collectors.toList());
+        }
+    }
+
+    // processors and their dependencies are loaded from external classpath, isolated from incjc own dependencies
+    private synchronized ClassLoader classLoader() {
+        if (classLoader == null) {
+            URL[] urls = new URL[entries.size()];
+            for (int i = 0; i < urls.length; i++) {
+                try {
+                    urls[i] = entries.get(i).toUri().toURL();
+                } catch (MalformedURLException e) {
+                    throw new RuntimeException("Failed to load annotation processors from " + entries.get(i), e);
+                }
+            }
+            classLoader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader());
+        }
+        return classLoader;
+    }
+
+    private Processor newProcessor(String name) {
+        try {
+            return classLoader().loadClass(name).asSubclass(Processor.class).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new RuntimeException("Failed to instantiate annotation processor " + name, e);
+        }
+    }
+
+    private static class GeneratedFile {
+        final String relativePath;
+        final boolean classOutput;  // class file or resource, otherwise source file or resource next to sources
+        final Set<String> origins;
+
+        GeneratedFile(String relativePath, boolean classOutput, Set<String> origins) {
+            this.relativePath = relativePath;
+            this.classOutput = classOutput;
+            this.origins = origins;
+        }
+    }
+
+    public class Round {
+        final Path sourceOutput;
+        private final Path classOutput;
+        private final Path classPath;
+        private final boolean runAggregating;
+        private final Map<Path, String> sources = new HashMap<>(); // normalized path -> path as given
+        private final List<GeneratedFile> files = new ArrayList<>();
+        private final Set<String> aggregatingOrigins = new HashSet<>();
+        private boolean tracked;
+
+        private Round(Collection<String> sources, Path classOutput, Path classPath, boolean runAggregating) {
+            try {
+                this.sourceOutput = Files.createTempDirectory(IncJC.TMP_INCJC_PREFIX).toAbsolutePath();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create temporary directory", e);
+            }
+            this.classOutput = classOutput;
+            this.classPath = classPath;
+            this.runAggregating = runAggregating;
+            for (String src : sources) {
+                this.sources.put(Paths.get(src).toAbsolutePath().normalize(), src);
+            }
+        }
+
+        // processors recording files they generate; should be given to compiler, which can track those
+        List<Processor> processors() {
+            tracked = true;
+            List<Processor> result = new ArrayList<>();
+            processors.forEach((name, kind) -> {
+                if (kind != Kind.AGGREGATING || runAggregating) {
+                    result.add(new TrackingProcessor(newProcessor(name), name, kind));
+                }
+            });
+            return result;
+        }
+
+        // should be called once compiled; sources generated by a compiler not tracking files are of unknown origin
+        void finish() {
+            if (tracked) {
+                return;
+            }
+            try (Stream<Path> generated = Files.walk(sourceOutput)) {
+                generated.filter(Files::isRegularFile).forEach(file -> files.add(new GeneratedFile(
+                    sourceOutput.relativize(file).toString(), false, Collections.singleton(UNATTRIBUTED))));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to find generated sources in " + sourceOutput, e);
+            }
+        }
+
+        private Path targetPath(GeneratedFile file) {
+            return (file.classOutput ? classPath : generatedDir).resolve(file.relativePath);
+        }
+
+        private String origin(@Nullable Trees trees, Element element) {
+            TreePath path = trees != null ? trees.getPath(element) : null;
+            if (path == null) {
+                return UNATTRIBUTED; // e.g. a class from the classpath
+            }
+            Path file = Paths.get(path.getCompilationUnit().getSourceFile().toUri()).toAbsolutePath().normalize();
+            if (file.startsWith(sourceOutput)) {
+                return generatedDir.resolve(sourceOutput.relativize(file)).toString();
+            }
+            return sources.getOrDefault(file, file.toString());
+        }
+
+        private void record(String relativePath, boolean classOutput, String processor, Kind kind,
+            Set<String> origins)
+        {
+            Set<String> fileOrigins = origins;
+            if (kind == Kind.AGGREGATING) {
+                fileOrigins = Collections.singleton(AGGREGATED);
+            } else if (kind != Kind.ISOLATING || origins.size() != 1 || origins.contains(UNATTRIBUTED)) {
+                debug("Annotation processor " + processor + " generated " + relativePath +
+                    " not from a single originating source: " + origins);
+                fileOrigins = Collections.singleton(UNATTRIBUTED);
+            }
+            files.add(new GeneratedFile(relativePath, classOutput, fileOrigins));
+        }
+
+        private class TrackingProcessor implements Processor {
+            private final Processor delegate;
+            private final String name;
+            private final Kind kind;
+            @Nullable
+            private Trees trees;
+
+            TrackingProcessor(Processor delegate, String name, Kind kind) {
+                this.delegate = delegate;
+                this.name = name;
+                this.kind = kind;
+            }
+
+            @Override
+            public Set<String> getSupportedOptions() {
+                return delegate.getSupportedOptions();
+            }
+
+            @Override
+            public Set<String> getSupportedAnnotationTypes() {
+                return delegate.getSupportedAnnotationTypes();
+            }
+
+            @Override
+            public SourceVersion getSupportedSourceVersion() {
+                return delegate.getSupportedSourceVersion();
+            }
+
+            @Override
+            public void init(ProcessingEnvironment processingEnv) {
+                try {
+                    trees = Trees.instance(processingEnv);
+                } catch (IllegalArgumentException e) {
+                    trees = null;
+                }
+                delegate.init(new TrackingEnvironment(processingEnv, this));
+            }
+
+            // all the types annotated are origins of whatever aggregating processor generates
+            @Override
+            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                if (kind == Kind.AGGREGATING) {
+                    for (TypeElement annotation : annotations) {
+                        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                            aggregatingOrigins.add(origin(trees, element));
+                        }
+                    }
+                }
+                return delegate.process(annotations, roundEnv);
+            }
+
+            @Override
+            public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation,
+                ExecutableElement member, String userText)
+            {
+                return delegate.getCompletions(element, annotation, member, userText);
+            }
+
+            void record(String relativePath, boolean classOutput, Element[] originatingElements) {
+                Set<String> origins = new LinkedHashSet<>();
+                for (Element element : originatingElements) {
+                    origins.add(origin(trees, element));
+                }
+                Round.this.record(relativePath, classOutput, name, kind, origins);
+            }
+        }
+
+        private class TrackingEnvironment implements ProcessingEnvironment {
+            private final ProcessingEnvironment delegate;
+            private final Filer filer;
+
+            TrackingEnvironment(ProcessingEnvironment delegate, TrackingProcessor processor) {
+                this.delegate = delegate;
+                this.filer = new TrackingFiler(delegate.getFiler(), processor);
+            }
+
+            @Override
+            public Map<String, String> getOptions() {
+                return delegate.getOptions();
+            }
+
+            @Override
+            public Messager getMessager() {
+                return delegate.getMessager();
+            }
+
+            @Override
+            public Filer getFiler() {
+                return filer;
+            }
+
+            @Override
+            public Elements getElementUtils() {
+                return delegate.getElementUtils();
+            }
+
+            @Override
+            public Types getTypeUtils() {
+                return delegate.getTypeUtils();
+            }
+
+            @Override
+            public SourceVersion getSourceVersion() {
+                return delegate.getSourceVersion();
+            }
+
+            @Override
+            public Locale getLocale() {
+                return delegate.getLocale();
+            }
+        }
+
+        // names may be prefixed with module name and a slash
+        private class TrackingFiler implements Filer {
+            private final Filer delegate;
+            private final TrackingProcessor processor;
+
+            TrackingFiler(Filer delegate, TrackingProcessor processor) {
+                this.delegate = delegate;
+                this.processor = processor;
+            }
+
+            @Override
+            public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements)
+                throws IOException
+            {
+                JavaFileObject file = delegate.createSourceFile(name, originatingElements);
+                processor.record(withoutModule(name).replace('.', '/') + ".java", false, originatingElements);
+                return file;
+            }
+
+            @Override
+            public JavaFileObject createClassFile(CharSequence name, Element... originatingElements)
+                throws IOException
+            {
+                JavaFileObject file = delegate.createClassFile(name, originatingElements);
+                processor.record(withoutModule(name).replace('.', '/') + ".class", true, originatingElements);
+                return file;
+            }
+
+            @Override
+            public FileObject createResource(JavaFileManager.Location location, CharSequence moduleAndPkg,
+                CharSequence relativeName, Element... originatingElements) throws IOException
+            {
+                FileObject file = delegate.createResource(location, moduleAndPkg, relativeName, originatingElements);
+                if (location == StandardLocation.SOURCE_OUTPUT || location == StandardLocation.CLASS_OUTPUT) {
+                    String pkg = withoutModule(moduleAndPkg);
+                    processor.record(pkg.isEmpty() ? relativeName.toString()
+                            : pkg.replace('.', '/') + "/" + relativeName,
+                        location == StandardLocation.CLASS_OUTPUT, originatingElements);
+                }
+                return file;
+            }
+
+            @Override
+            public FileObject getResource(JavaFileManager.Location location, CharSequence moduleAndPkg,
+                CharSequence relativeName) throws IOException
+            {
+                return delegate.getResource(location, moduleAndPkg, relativeName);
+            }
+
+            private String withoutModule(CharSequence name) {
+                String s = name.toString();
+                return s.substring(s.indexOf('/') + 1);
+            }
+        }
+    }
+}
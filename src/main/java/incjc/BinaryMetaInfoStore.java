@@ -0,0 +1,283 @@
+package incjc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * Binary format, all numbers are big-endian:
+ *
+ * header:       magic (int), version (int)
+ * string table: count (int), then for each string: length (int), UTF-8 bytes
+ * sections:     count (int), then for each section: name (string id), length in bytes (int), payload
+ *
+ * Every class name / source path is stored once in the string table and referenced by its index everywhere else.
+ * Unknown sections are skipped, so that sections may be added without breaking older readers.
+ */
+class BinaryMetaInfoStore implements MetaInfoStore {
+
+    private static final String META_FILE = "meta.bin";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x494E434A; // "INCJ"
+    private static final int VERSION = 1;
+
+    private static final String CLASSES_SECTION = "classes";
+    private static final String SOURCES_SECTION = "sources";
+    private static final String DEPS_SECTION = "deps";
+    private static final String ABI_SECTION = "abi";
+    private static final String GENERATED_SECTION = "generated";
+
+    @Override
+    public boolean existsIn(Path dir) {
+        return Files.exists(dir.resolve(META_FILE));
+    }
+
+    // Only sources are read right away, as each build needs them; other sections are read once metainfo is first
+    // accessed beyond sources, so that builds not needing them (e.g. no-op ones) do not pay for reading them. Strings
+    // are decoded from the mapped file by ID when first referred to, rather than the whole table up front.
+    @Override
+    public void read(Path dir, MetaInfo target) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(dir.resolve(META_FILE), StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("Not an incjc metainfo file: " + dir.resolve(META_FILE));
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported metainfo version " + version + " in " + dir.resolve(META_FILE));
+        }
+
+        MappedStrings strings = new MappedStrings(buf);
+        Map<String, Integer> sections = new HashMap<>();   // name -> payload position
+        int sectionCount = buf.getInt();
+        for (int i = 0; i < sectionCount; i++) {
+            String name = strings.get(buf.getInt());
+            int length = buf.getInt();
+            sections.put(name, buf.position());
+            buf.position(buf.position() + length);
+        }
+
+        readSection(buf, sections, SOURCES_SECTION, in -> readSources(in, strings, target.sources));
+        target.loadLazily(() -> {
+            readSection(buf, sections, CLASSES_SECTION, in -> readMap(in, strings, target.classes));
+            readSection(buf, sections, DEPS_SECTION, in -> readGraph(in, strings, target.deps));
+            readSection(buf, sections, ABI_SECTION, in -> readMap(in, strings, target.abiHashes));
+            readSection(buf, sections, GENERATED_SECTION, in -> readGraph(in, strings, target.generated));
+        });
+    }
+
+    @Override
+    public void write(Path dir, MetaInfo source) throws IOException {
+        StringTable strings = new StringTable();
+        List<String> sectionNames = new ArrayList<>();
+        List<byte[]> sections = new ArrayList<>();
+
+        addSection(sectionNames, sections, strings, CLASSES_SECTION, out -> writeMap(out, strings, source.classes));
+        addSection(sectionNames, sections, strings, SOURCES_SECTION, out -> writeSources(out, strings, source.sources));
+        addSection(sectionNames, sections, strings, DEPS_SECTION, out -> writeGraph(out, strings, source.deps));
+        addSection(sectionNames, sections, strings, ABI_SECTION, out -> writeMap(out, strings, source.abiHashes));
+        addSection(sectionNames, sections, strings, GENERATED_SECTION,
+            out -> writeGraph(out, strings, source.generated));
+
+        Path tmpFile = dir.resolve(META_FILE + TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.list.size());
+            for (String s : strings.list) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(sections.size());
+            for (int i = 0; i < sections.size(); i++) {
+                out.writeInt(strings.id(sectionNames.get(i)));
+                out.writeInt(sections.get(i).length);
+                out.write(sections.get(i));
+            }
+        }
+        Files.move(tmpFile, dir.resolve(META_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void delete(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(META_FILE));
+    }
+
+    @Override
+    public long size(Path dir) throws IOException {
+        return Files.size(dir.resolve(META_FILE));
+    }
+
+    private static void addSection(List<String> names, List<byte[]> sections, StringTable strings, String name,
+        SectionWriter writer) throws IOException
+    {
+        strings.id(name);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        }
+        names.add(name);
+        sections.add(bytes.toByteArray());
+    }
+
+    private static void readSection(ByteBuffer buf, Map<String, Integer> sections, String name,
+        Consumer<ByteBuffer> reader)
+    {
+        Integer position = sections.get(name);
+        if (position != null) {
+            ByteBuffer in = buf.duplicate();
+            in.position(position);
+            reader.accept(in);
+        }
+    }
+
+    private static void readMap(ByteBuffer buf, MappedStrings strings, Map<String, String> target) {
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            target.put(strings.get(buf.getInt()), strings.get(buf.getInt()));
+        }
+    }
+
+    private static void writeMap(DataOutputStream out, StringTable strings, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            out.writeInt(strings.id(e.getKey()));
+            out.writeInt(strings.id(e.getValue()));
+        }
+    }
+
+    private static void readGraph(ByteBuffer buf, MappedStrings strings, DependencyGraph target) {
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            String cls = strings.get(buf.getInt());
+            int dependentCount = buf.getInt();
+            for (int j = 0; j < dependentCount; j++) {
+                target.addEdge(cls, strings.get(buf.getInt()));
+            }
+        }
+    }
+
+    private static void writeGraph(DataOutputStream out, StringTable strings, DependencyGraph graph) throws IOException {
+        List<String> classes = new ArrayList<>();
+        List<List<String>> dependents = new ArrayList<>();
+        graph.forEach((cls, dependentSet) -> {
+            classes.add(cls);
+            dependents.add(new ArrayList<>(dependentSet));
+        });
+        out.writeInt(classes.size());
+        for (int i = 0; i < classes.size(); i++) {
+            out.writeInt(strings.id(classes.get(i)));
+            out.writeInt(dependents.get(i).size());
+            for (String dependent : dependents.get(i)) {
+                out.writeInt(strings.id(dependent));
+            }
+        }
+    }
+
+    // hash is stored as raw bytes, if it is a hex string (as it always is for hashes computed by incjc)
+    private static void readSources(ByteBuffer buf, MappedStrings strings, Map<String, SourceState> target) {
+        int count = buf.getInt();
+        for (int i = 0; i < count; i++) {
+            String src = strings.get(buf.getInt());
+            byte[] hash = new byte[buf.getShort() & 0xFFFF];
+            buf.get(hash);
+            target.put(src, new SourceState(Hex.encodeHexString(hash), buf.getLong(), buf.getLong()));
+        }
+    }
+
+    private static void writeSources(DataOutputStream out, StringTable strings, Map<String, SourceState> map)
+        throws IOException
+    {
+        out.writeInt(map.size());
+        for (Map.Entry<String, SourceState> e : map.entrySet()) {
+            SourceState state = e.getValue();
+            byte[] hash;
+            try {
+                hash = Hex.decodeHex(state.hash);
+            } catch (DecoderException ex) {
+                hash = new byte[0]; // never matches any real hash, so the source will be recompiled next time
+            }
+            out.writeInt(strings.id(e.getKey()));
+            out.writeShort(hash.length);
+            out.write(hash);
+            out.writeLong(state.size);
+            out.writeLong(state.mtime);
+        }
+    }
+
+    private static class StringTable {
+        final Map<String, Integer> ids = new HashMap<>();
+        final List<String> list = new ArrayList<>();
+
+        int id(String s) {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = list.size();
+                ids.put(s, id);
+                list.add(s);
+            }
+            return id;
+        }
+    }
+
+    // string table of mapped file, which is only scanned for string offsets; strings are decoded on first use
+    private static class MappedStrings {
+        private final ByteBuffer buf;
+        private final int[] offsets;
+        private final String[] strings;
+        private byte[] bytes = new byte[256];
+
+        // reads the table at the current position of buffer given, and skips it
+        MappedStrings(ByteBuffer buf) {
+            this.buf = buf.duplicate();
+            int count = buf.getInt();
+            offsets = new int[count];
+            strings = new String[count];
+            int position = buf.position();
+            for (int i = 0; i < count; i++) {
+                offsets[i] = position;
+                position += 4 + buf.getInt(position);
+            }
+            buf.position(position);
+        }
+
+        String get(int id) {
+            String s = strings[id];
+            if (s == null) {
+                int length = buf.getInt(offsets[id]);
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                buf.position(offsets[id] + 4);
+                buf.get(bytes, 0, length);
+                s = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                strings[id] = s;
+            }
+            return s;
+        }
+    }
+
+    private interface SectionWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
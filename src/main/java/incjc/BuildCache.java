@@ -0,0 +1,525 @@
+package incjc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Local cache of compiled classes, shared by all source directories (e.g. several checkouts of the same project).
+ *
+ * Entry holds classes compiled from a single source file, together with ABI fingerprints of all project and
+ * external classes those classes depend on at the moment of compilation, as well as of supertypes of those classes
+ * (members inherited from supertypes are used through their subclasses). Entries are looked up by source path
+ * (relative to source directory) and contents, as well as compiler identity and external classpath; entry is used if
+ * dependencies of its classes have the same ABI fingerprints now. So switching to a previously built branch restores
+ * its classes instead of compiling them.
+ *
+ * Entries are stored as <cache dir>/<2 hex digits>/<lookup key>-<dependencies hash>.entry; modification time of entry
+ * file is its last use time, least recently used entries are evicted once cache size exceeds its limit.
+ */
+public class BuildCache {
+
+    private static final int MAGIC = 0x494E4343;
+    private static final int VERSION = 2; // 1 did not record ABI of supertypes
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String STATS_FILE = "stats.txt";
+    private static final String STATS_LOCK_FILE = "stats.lock";
+    private static final String ABSENT = "-"; // dependency is not a project class
+
+    private static final long DEFAULT_MAX_SIZE_MB = 1024;
+    // eviction frees some more space than needed, so that it does not happen on every store
+    private static final double EVICTION_TARGET_RATIO = 0.9;
+
+    // stats file is updated under lock of this process (as modules are built in parallel, see Modules) and file lock,
+    // which is held by the whole process, not thread
+    private static final Object STATS_LOCK = new Object();
+
+    private final Path dir;
+    private final long maxSize;
+
+    private long hits;
+    private long misses;
+    private long stores;
+
+    private BuildCache(Path dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    // INCJC_CACHE=1 enables cache in $HOME/.incjc-cache, INCJC_CACHE_MAX_SIZE sets its size limit in megabytes
+    @Nullable
+    public static BuildCache ifEnabled() {
+        return Debug.TRUE_VALUES.contains(System.getenv("INCJC_CACHE")) ? inHomeDir() : null;
+    }
+
+    public static BuildCache inHomeDir() {
+        String maxSizeEnv = System.getenv("INCJC_CACHE_MAX_SIZE");
+        long maxSizeMb = maxSizeEnv != null ? Long.parseLong(maxSizeEnv) : DEFAULT_MAX_SIZE_MB;
+        return new BuildCache(Paths.get(System.getProperty("user.home"), ".incjc-cache"), maxSizeMb * 1024 * 1024);
+    }
+
+    static class Entry {
+        final Path file;
+        final Map<String, String> dependencyAbis;   // class name -> ABI fingerprint or ABSENT
+        final List<ClassFileDesc> descs;
+        final List<byte[]> classBytes;
+
+        Entry(Path file, Map<String, String> dependencyAbis, List<ClassFileDesc> descs, List<byte[]> classBytes) {
+            this.file = file;
+            this.dependencyAbis = dependencyAbis;
+            this.descs = descs;
+            this.classBytes = classBytes;
+        }
+    }
+
+    /*
+     * Finds entries for sources given, which dependencies have the same ABI as now. ABI of classes from other sources
+     * given is not known before those are compiled or restored themselves, so entries are searched repeatedly, until
+     * no more entries can be used.
+     */
+    public Map<String, Entry> findRestorable(String sourceDir, Collection<String> sources,
+        Map<String, SourceState> sourceStates, Set<String> deletedSources, MetaInfo metaInfo,
+        Map<String, String> changedExternalAbis, @Nullable String externalClasspath)
+    {
+        Map<String, List<Entry>> candidates = new HashMap<>();
+        for (String src : sources) {
+            List<Entry> entries = readEntries(lookupKey(sourceDir, src, sourceStates.get(src).hash,
+                externalClasspath));
+            if (!entries.isEmpty()) {
+                candidates.put(src, entries);
+            }
+        }
+
+        Map<String, Entry> result = new HashMap<>();
+        // ABI of classes changed in this build, which is not in metainfo yet
+        Map<String, String> restoredAbis = new HashMap<>();
+        changedExternalAbis.forEach((cls, abi) -> restoredAbis.put(cls, abi != null ? abi : ABSENT));
+        Set<String> pendingSources = new HashSet<>(sources);
+        // old classes of these sources are gone
+        Set<String> replacedSources = new HashSet<>(deletedSources);
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Map.Entry<String, List<Entry>> srcCandidates : candidates.entrySet()) {
+                String src = srcCandidates.getKey();
+                if (result.containsKey(src)) {
+                    continue;
+                }
+                for (Entry entry : srcCandidates.getValue()) {
+                    if (matches(entry, metaInfo, pendingSources, replacedSources, restoredAbis)) {
+                        result.put(src, entry);
+                        pendingSources.remove(src);
+                        replacedSources.add(src);
+                        entry.descs.forEach(desc -> restoredAbis.put(desc.fullClassName, desc.abiHash));
+                        progress = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        hits += result.size();
+        misses += sources.size() - result.size();
+        return result;
+    }
+
+    private static boolean matches(Entry entry, MetaInfo metaInfo, Set<String> pendingSources,
+        Set<String> replacedSources, Map<String, String> restoredAbis)
+    {
+        for (Map.Entry<String, String> dep : entry.dependencyAbis.entrySet()) {
+            String cls = dep.getKey();
+            String abi = restoredAbis.get(cls);
+            if (abi == null) {
+                String src = metaInfo.classes.get(cls);
+                if (src != null && pendingSources.contains(src)) {
+                    return false; // not known yet
+                }
+                // external classes have ABI known as well, see ExternalClasspath
+                abi = src == null || !replacedSources.contains(src)
+                    ? metaInfo.abiHashes.getOrDefault(cls, ABSENT)
+                    : ABSENT;
+            }
+            if (!abi.equals(dep.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void restore(Entry entry, Path classDir) {
+        for (int i = 0; i < entry.descs.size(); i++) {
+            Path classFile = classDir.resolve(entry.descs.get(i).fullClassName.replace(".", File.separator) + ".class");
+            try {
+                Files.createDirectories(classFile.getParent());
+                Files.write(classFile, entry.classBytes.get(i));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to restore class file " + classFile, e);
+            }
+        }
+        try {
+            Files.setLastModifiedTime(entry.file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            debug("Failed to update last use time of " + entry.file + ": " + e);
+        }
+    }
+
+    // Stores classes compiled from each source; dependencies ABI is taken from metainfo already updated with them, and
+    // their supertypes -- from class files in the classpath directory, already updated as well
+    public void store(String sourceDir, Map<Path, Collection<ClassFileDesc>> compiledClasses, MetaInfo metaInfo,
+        Path classPath, @Nullable String externalClasspath)
+    {
+        try {
+            storeEntries(sourceDir, compiledClasses, metaInfo, classPath, externalClasspath);
+            evictIfNeeded();
+        } catch (RuntimeException e) {
+            // build itself has succeeded
+            System.err.println("Failed to update build cache: " + e.getMessage());
+        }
+    }
+
+    private void storeEntries(String sourceDir, Map<Path, Collection<ClassFileDesc>> compiledClasses,
+        MetaInfo metaInfo, Path classPath, @Nullable String externalClasspath)
+    {
+        Map<String, List<ClassFileDesc>> descsBySource = new HashMap<>();
+        Map<String, Path> classDirs = new HashMap<>();
+        compiledClasses.forEach((classDir, descs) -> {
+            for (ClassFileDesc desc : descs) {
+                descsBySource.computeIfAbsent(desc.sourceFile, k -> new ArrayList<>()).add(desc);
+                classDirs.put(desc.fullClassName, classDir);
+            }
+        });
+
+        Map<String, List<String>> superTypes = new HashMap<>();
+        descsBySource.forEach((relSrc, descs) -> {
+            String src = sourceDir + File.separator + relSrc;
+            SourceState state = metaInfo.sources.get(src);
+            if (state == null) {
+                return;
+            }
+            Set<String> visited = descs.stream().map(desc -> desc.fullClassName).collect(Collectors.toSet());
+            Map<String, String> dependencyAbis = new TreeMap<>();
+            Deque<String> queue = new ArrayDeque<>();
+            descs.forEach(desc -> queue.addAll(desc.dependsOn));
+            while (!queue.isEmpty()) {
+                String dep = queue.poll();
+                if (visited.add(dep)) {
+                    dependencyAbis.put(dep, metaInfo.abiHashes.getOrDefault(dep, ABSENT));
+                    queue.addAll(superTypes.computeIfAbsent(dep, cls -> superTypes(cls, metaInfo, classPath)));
+                }
+            }
+            List<byte[]> classBytes = new ArrayList<>();
+            for (ClassFileDesc desc : descs) {
+                Path classFile = classDirs.get(desc.fullClassName)
+                    .resolve(desc.fullClassName.replace(".", File.separator) + ".class");
+                try {
+                    classBytes.add(Files.readAllBytes(classFile));
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read class file " + classFile, e);
+                }
+            }
+            String key = lookupKey(sourceDir, src, state.hash, externalClasspath);
+            Path file = entryDir(key).resolve(key + "-" + DigestUtils.sha256Hex(dependencyAbis.toString()) + ENTRY_SUFFIX);
+            if (Files.exists(file)) {
+                Entry existing = readEntry(file);
+                if (existing != null && sameClasses(existing, descs, classBytes)) {
+                    return;
+                }
+                debug("Replacing build cache entry " + file + " with classes compiled differently");
+            }
+            writeEntry(new Entry(file, dependencyAbis, descs, classBytes));
+            stores++;
+        });
+    }
+
+    // project classes are read from the classpath directory; supertypes of external classes are kept in dependency
+    // graph, see ExternalClasspath
+    private static List<String> superTypes(String cls, MetaInfo metaInfo, Path classPath) {
+        if (!metaInfo.classes.containsKey(cls)) {
+            return new ArrayList<>(metaInfo.deps.dependenciesOf(cls));
+        }
+        Path classFile = classPath.resolve(cls.replace(".", File.separator) + ".class");
+        if (!Files.exists(classFile)) {
+            return Collections.emptyList();
+        }
+        ClassFile cf = ClassFile.read(classFile);
+        List<String> result = new ArrayList<>(cf.interfaceNames);
+        if (cf.superClassName != null) {
+            result.add(cf.superClassName);
+        }
+        result.removeIf(superType -> !metaInfo.classes.containsKey(superType)
+            && !metaInfo.abiHashes.containsKey(superType));
+        return result;
+    }
+
+    private static boolean sameClasses(Entry entry, List<ClassFileDesc> descs, List<byte[]> classBytes) {
+        if (entry.descs.size() != descs.size()) {
+            return false;
+        }
+        Map<String, byte[]> entryClasses = new HashMap<>();
+        for (int i = 0; i < entry.descs.size(); i++) {
+            entryClasses.put(entry.descs.get(i).fullClassName, entry.classBytes.get(i));
+        }
+        for (int i = 0; i < descs.size(); i++) {
+            byte[] bytes = entryClasses.get(descs.get(i).fullClassName);
+            if (bytes == null || !Arrays.equals(bytes, classBytes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // source path is relative to source directory, so that entries are shared between checkouts
+    private static String lookupKey(String sourceDir, String src, String sourceHash,
+        @Nullable String externalClasspath)
+    {
+        String relSrc = Paths.get(sourceDir).relativize(Paths.get(src)).toString();
+        return DigestUtils.sha256Hex(String.join("\n", relSrc, sourceHash,
+            System.getProperty("java.version"), String.valueOf(System.getenv("INCJC_JAVAC")),
+            String.valueOf(System.getenv("JDK_HOME")), String.valueOf(System.getenv("JAVA_HOME")),
+            String.valueOf(externalClasspath)));
+    }
+
+    private Path entryDir(String key) {
+        return dir.resolve(key.substring(0, 2));
+    }
+
+    private List<Entry> readEntries(String key) {
+        Path entryDir = entryDir(key);
+        if (!Files.isDirectory(entryDir)) {
+            return Collections.emptyList();
+        }
+        List<Entry> result = new ArrayList<>();
+        try (Stream<Path> files = Files.list(entryDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith(key + "-")) {
+                    Entry entry = readEntry(file);
+                    if (entry != null) {
+                        result.add(entry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list build cache directory " + entryDir, e);
+        }
+        return result;
+    }
+
+    @Nullable
+    private static Entry readEntry(Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                debug("Ignoring build cache entry of unsupported format " + file);
+                return null;
+            }
+            Map<String, String> dependencyAbis = new TreeMap<>();
+            int depCount = in.readInt();
+            for (int i = 0; i < depCount; i++) {
+                dependencyAbis.put(in.readUTF(), in.readUTF());
+            }
+            int classCount = in.readInt();
+            List<ClassFileDesc> descs = new ArrayList<>(classCount);
+            List<byte[]> classBytes = new ArrayList<>(classCount);
+            for (int i = 0; i < classCount; i++) {
+                String className = in.readUTF();
+                String sourceFile = in.readUTF();
+                String abiHash = in.readUTF();
+                Set<String> dependsOn = new HashSet<>();
+                int dependsOnCount = in.readInt();
+                for (int j = 0; j < dependsOnCount; j++) {
+                    dependsOn.add(in.readUTF());
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                descs.add(new ClassFileDesc(className, dependsOn, sourceFile, abiHash));
+                classBytes.add(bytes);
+            }
+            return new Entry(file, dependencyAbis, descs, classBytes);
+        } catch (IOException e) {
+            // entries may be evicted concurrently
+            debug("Failed to read build cache entry " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private static void writeEntry(Entry entry) {
+        try {
+            Files.createDirectories(entry.file.getParent());
+            Path tmpFile = Files.createTempFile(entry.file.getParent(), "tmp-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entry.dependencyAbis.size());
+                for (Map.Entry<String, String> dep : entry.dependencyAbis.entrySet()) {
+                    out.writeUTF(dep.getKey());
+                    out.writeUTF(dep.getValue());
+                }
+                out.writeInt(entry.descs.size());
+                for (int i = 0; i < entry.descs.size(); i++) {
+                    ClassFileDesc desc = entry.descs.get(i);
+                    out.writeUTF(desc.fullClassName);
+                    out.writeUTF(desc.sourceFile);
+                    out.writeUTF(desc.abiHash);
+                    out.writeInt(desc.dependsOn.size());
+                    for (String dep : desc.dependsOn) {
+                        out.writeUTF(dep);
+                    }
+                    out.writeInt(entry.classBytes.get(i).length);
+                    out.write(entry.classBytes.get(i));
+                }
+            }
+            moveAtomically(tmpFile, entry.file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write build cache entry " + entry.file, e);
+        }
+    }
+
+    private static void moveAtomically(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private List<Path> listEntries() {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.walk(dir, 2)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX))
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list build cache " + dir, e);
+        }
+    }
+
+    private void evictIfNeeded() {
+        Map<Path, BasicFileAttributes> entries = new HashMap<>();
+        long totalSize = 0;
+        for (Path file : listEntries()) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                entries.put(file, attrs);
+                totalSize += attrs.size();
+            } catch (IOException e) {
+                // evicted concurrently
+            }
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        List<Path> byLastUse = new ArrayList<>(entries.keySet());
+        byLastUse.sort(Comparator.comparing(file -> entries.get(file).lastModifiedTime()));
+        int evicted = 0;
+        for (Path file : byLastUse) {
+            if (totalSize <= maxSize * EVICTION_TARGET_RATIO) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(file);
+                totalSize -= entries.get(file).size();
+                evicted++;
+            } catch (IOException e) {
+                debug("Failed to evict build cache entry " + file + ": " + e);
+            }
+        }
+        debug("Evicted " + evicted + " build cache entries");
+    }
+
+    // hit / miss counters of this run are added to ones saved in cache directory
+    public void saveStats() {
+        if (hits == 0 && misses == 0 && stores == 0) {
+            return;
+        }
+        synchronized (STATS_LOCK) {
+            try {
+                Files.createDirectories(dir);
+                try (FileChannel lock = FileChannel.open(dir.resolve(STATS_LOCK_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE))
+                {
+                    lock.lock(); // released once channel is closed
+                    long[] stats = readStats();
+                    String content = String.format("hits=%d%nmisses=%d%nstores=%d%n",
+                        stats[0] + hits, stats[1] + misses, stats[2] + stores);
+                    Path tmpFile = dir.resolve(STATS_FILE + ".tmp");
+                    Files.write(tmpFile, content.getBytes(StandardCharsets.US_ASCII));
+                    moveAtomically(tmpFile, dir.resolve(STATS_FILE));
+                }
+            } catch (IOException e) {
+                debug("Failed to save build cache stats: " + e);
+            }
+        }
+        hits = misses = stores = 0;
+    }
+
+    private long[] readStats() {
+        long[] result = new long[3];
+        Path statsFile = dir.resolve(STATS_FILE);
+        if (!Files.exists(statsFile)) {
+            return result;
+        }
+        try (InputStream in = Files.newInputStream(statsFile)) {
+            Properties props = new Properties();
+            props.load(in);
+            result[0] = Long.parseLong(props.getProperty("hits", "0"));
+            result[1] = Long.parseLong(props.getProperty("misses", "0"));
+            result[2] = Long.parseLong(props.getProperty("stores", "0"));
+        } catch (IOException | NumberFormatException e) {
+            debug("Failed to read build cache stats: " + e);
+        }
+        return result;
+    }
+
+    public void printStats() {
+        long[] stats = readStats();
+        List<Path> entries = listEntries();
+        long totalSize = 0;
+        for (Path file : entries) {
+            totalSize += file.toFile().length();
+        }
+        long lookups = stats[0] + stats[1];
+        System.out.printf("Build cache: %s%n" +
+                "Entries: %d, size: %.1f MB (limit %.1f MB)%n" +
+                "Hits: %d, misses: %d, hit rate: %s%n" +
+                "Stores: %d%n",
+            dir, entries.size(), totalSize / 1048576.0, maxSize / 1048576.0,
+            stats[0], stats[1], lookups > 0 ? String.format("%.1f%%", 100.0 * stats[0] / lookups) : "n/a",
+            stats[2]);
+    }
+}
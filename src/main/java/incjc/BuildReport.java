@@ -0,0 +1,265 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import static incjc.Debug.debug;
+
+/*
+ * Timings of build phases and counters of work done (files hashed, classes copied, sources recompiled, etc.) of the
+ * current build. Phases of the same name (e.g. javac calls of several waves) are summed up.
+ *
+ * Names of classes whose class files have been added, changed or deleted by an incremental build are reported as
+ * well, so that tools consuming the classpath directory (packaging, test runners, etc.) could only process those; the
+ * list is absent after a full build, when all classes should be considered changed.
+ *
+ * Once the build completes, the report is written as JSON to the file set by INCJC_REPORT (if any), and printed
+ * with debug output. Each phase, as well as the whole build, is also emitted as a JFR event (category "incjc"),
+ * recorded when the JVM runs with flight recording enabled.
+ */
+public class BuildReport {
+
+    static final String REPORT_ENV = "INCJC_REPORT";
+
+    private static final int FORMAT_VERSION = 1;
+
+    // one build is run at a time (see Daemon), but phases and counters may be updated from parallel threads
+    private static volatile BuildReport current = new BuildReport();
+
+    private volatile String mode = "none";
+    private final Instant start = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, long[]> phases = new LinkedHashMap<>();   // phase -> total nanos, count
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final Map<String, Set<String>> classes = new LinkedHashMap<>();  // "added" / "changed" / "deleted" -> names
+
+    @Name("incjc.Phase")
+    @Label("Build Phase")
+    @Category("incjc")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("incjc.Build")
+    @Label("Build")
+    @Category("incjc")
+    static class BuildEvent extends Event {
+        @Label("Mode")
+        String mode;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Files Hashed")
+        long filesHashed;
+
+        @Label("Sources Recompiled")
+        long sourcesRecompiled;
+
+        @Label("Waves")
+        @Description("Number of compilation waves, that is, depth of ABI change cascade plus one")
+        long waves;
+
+        @Label("Classes Copied")
+        long classesCopied;
+    }
+
+    private static class Phase {
+        private final BuildReport report;
+        private final String name;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long startNanos = System.nanoTime();
+
+        private Phase(BuildReport report, String name) {
+            this.report = report;
+            this.name = name;
+            event.phase = name;
+            event.begin();
+        }
+
+        void end() {
+            report.addPhase(name, System.nanoTime() - startNanos);
+            event.commit();
+        }
+    }
+
+    public static void begin() {
+        current = new BuildReport();
+    }
+
+    // "full", "incremental" (source tree scanned) or "changes" (changed paths known)
+    public static void mode(String mode) {
+        current.mode = mode;
+    }
+
+    public static <T> T timed(String phase, Supplier<T> action) {
+        Phase p = new Phase(current, phase);
+        try {
+            return action.get();
+        } finally {
+            p.end();
+        }
+    }
+
+    public static void timed(String phase, Runnable action) {
+        timed(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public static void count(String counter, long delta) {
+        BuildReport report = current;
+        synchronized (report) {
+            report.counters.merge(counter, delta, Long::sum);
+        }
+    }
+
+    public static void classesChanged(Collection<String> added, Collection<String> changed,
+        Collection<String> deleted)
+    {
+        BuildReport report = current;
+        synchronized (report) {
+            report.classes.computeIfAbsent("added", k -> new TreeSet<>()).addAll(added);
+            report.classes.computeIfAbsent("changed", k -> new TreeSet<>()).addAll(changed);
+            report.classes.computeIfAbsent("deleted", k -> new TreeSet<>()).addAll(deleted);
+        }
+    }
+
+    // outcome is one of "success", "compilationError" and "failure"
+    public static void end(String outcome) {
+        BuildReport report = current;
+        long durationNanos = System.nanoTime() - report.startNanos;
+
+        BuildEvent event = new BuildEvent();
+        if (event.isEnabled()) {
+            event.mode = report.mode;
+            event.outcome = outcome;
+            event.filesHashed = report.counter("filesHashed");
+            event.sourcesRecompiled = report.counter("sourcesRecompiled");
+            event.waves = report.counter("waves");
+            event.classesCopied = report.counter("classesCopied");
+            event.commit();
+        }
+
+        if (Debug.DEBUG_ENABLED) {
+            synchronized (report) {
+                report.phases.forEach((name, stats) ->
+                    debug(String.format("Phase %s: %.1f ms (%d)", name, stats[0] / 1e6, stats[1])));
+                report.counters.forEach((name, value) -> debug("Counter " + name + ": " + value));
+                report.classes.forEach((kind, names) -> debug("Classes " + kind + ": " + names));
+            }
+        }
+
+        String reportPath = System.getenv(REPORT_ENV);
+        if (reportPath != null && !reportPath.isEmpty()) {
+            report.write(Paths.get(reportPath), outcome, durationNanos);
+        }
+    }
+
+    private synchronized void addPhase(String name, long nanos) {
+        long[] stats = phases.computeIfAbsent(name, k -> new long[2]);
+        stats[0] += nanos;
+        stats[1]++;
+    }
+
+    private synchronized long counter(String name) {
+        return counters.getOrDefault(name, 0L);
+    }
+
+    // report file is replaced atomically, so that dashboards never pick up a partially written one; failure to write
+    // the report does not fail the build
+    private synchronized void write(Path file, String outcome, long durationNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"version\": ").append(FORMAT_VERSION).append(",\n");
+        sb.append("  \"start\": ").append(quote(start.toString())).append(",\n");
+        sb.append("  \"mode\": ").append(quote(mode)).append(",\n");
+        sb.append("  \"outcome\": ").append(quote(outcome)).append(",\n");
+        sb.append("  \"durationMillis\": ").append(millis(durationNanos)).append(",\n");
+        sb.append("  \"phases\": {");
+        String sep = "\n";
+        for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+            sb.append(sep).append("    ").append(quote(phase.getKey()))
+                .append(": {\"millis\": ").append(millis(phase.getValue()[0]))
+                .append(", \"count\": ").append(phase.getValue()[1]).append("}");
+            sep = ",\n";
+        }
+        sb.append(phases.isEmpty() ? "},\n" : "\n  },\n");
+        sb.append("  \"counters\": {");
+        sep = "\n";
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            sb.append(sep).append("    ").append(quote(counter.getKey())).append(": ").append(counter.getValue());
+            sep = ",\n";
+        }
+        sb.append(counters.isEmpty() ? "}" : "\n  }");
+        if (!classes.isEmpty()) {
+            sb.append(",\n  \"classes\": {");
+            sep = "\n";
+            for (Map.Entry<String, Set<String>> kind : classes.entrySet()) {
+                sb.append(sep).append("    ").append(quote(kind.getKey())).append(": [");
+                String nameSep = "";
+                for (String name : kind.getValue()) {
+                    sb.append(nameSep).append(quote(name));
+                    nameSep = ", ";
+                }
+                sb.append("]");
+                sep = ",\n";
+            }
+            sb.append("\n  }");
+        }
+        sb.append("\n}\n");
+
+        try {
+            Path absFile = file.toAbsolutePath();
+            Path dir = absFile.getParent();
+            Files.createDirectories(dir);
+            Path tmpFile = dir.resolve(absFile.getFileName() + ".tmp");
+            Files.write(tmpFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmpFile, absFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, absFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write build report to " + file + ": " + e);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,533 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jetbrains.annotations.Nullable;
+
+// Minimal class file reader (JVMS, chapter 4): only the parts incjc needs are kept
+public class ClassFile {
+
+    public static final int ACC_MODULE = 0x8000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    public final int accessFlags;
+    public final String className;              // binary name, e.g. a.b.C$D
+    public final @Nullable String superClassName;
+    public final List<String> interfaceNames;
+    public final @Nullable String sourceFile;   // SourceFile attribute value, e.g. C.java
+    public final @Nullable String signature;    // generic signature
+    public final int innerClassAccessFlags;     // flags declared in source for nested classes, -1 for top level ones
+    public final List<Member> fields;
+    public final List<Member> methods;
+    public final Set<String> referencedClasses; // all classes mentioned by constant pool, descriptors and signatures
+    public final Set<String> memberRefs;        // fields / methods / constructors used, as "owner#name"
+
+    public static class Member {
+        public final int accessFlags;
+        public final String name;
+        public final String descriptor;
+        public final @Nullable String signature;
+        public final @Nullable String constantValue; // fields only, ConstantValue attribute
+        public final List<String> exceptions;        // methods only, Exceptions attribute
+
+        Member(int accessFlags, String name, String descriptor, Attributes attrs) {
+            this.accessFlags = accessFlags;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.signature = attrs.signature;
+            this.constantValue = attrs.constantValue;
+            this.exceptions = attrs.exceptions;
+        }
+    }
+
+    private static class Attributes {
+        int innerClassAccessFlags = -1;
+        String sourceFile;
+        String signature;
+        String constantValue;
+        List<String> exceptions = new ArrayList<>();
+    }
+
+    private final ByteBuffer buf;
+    private final int[] cpOffsets;
+    private final byte[] cpTags;
+    private final String[] utf8Cache;
+
+    private ClassFile(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.getInt() != 0xCAFEBABE) {
+            throw new IllegalArgumentException("Bad class file magic");
+        }
+        buf.getShort(); // minor version
+        buf.getShort(); // major version
+
+        int cpCount = u2();
+        cpOffsets = new int[cpCount];
+        cpTags = new byte[cpCount];
+        utf8Cache = new String[cpCount];
+        for (int i = 1; i < cpCount; i++) {
+            int tag = u1();
+            cpTags[i] = (byte) tag;
+            cpOffsets[i] = buf.position();
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    skip(u2());
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    skip(2);
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    skip(3);
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    skip(4);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    skip(8);
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+
+        Set<String> refs = new HashSet<>();
+        memberRefs = new HashSet<>();
+        for (int i = 1; i < cpCount; i++) {
+            switch (cpTags[i]) {
+                case CONSTANT_CLASS:
+                    addClassOrArray(refs, utf8At(cpOffsets[i]));
+                    break;
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                    String owner = utf8At(cpOffsets[buf.getShort(cpOffsets[i]) & 0xFFFF]);
+                    if (!owner.startsWith("[")) { // array methods, e.g. clone()
+                        int nameAndType = buf.getShort(cpOffsets[i] + 2) & 0xFFFF;
+                        memberRefs.add(memberRef(internalToBinaryName(owner), utf8At(cpOffsets[nameAndType])));
+                    }
+                    break;
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_METHOD_TYPE:
+                    // name-and-type descriptor follows its name, method type has descriptor only
+                    int descIndex = cpTags[i] == CONSTANT_NAME_AND_TYPE
+                        ? buf.getShort(cpOffsets[i] + 2) & 0xFFFF
+                        : buf.getShort(cpOffsets[i]) & 0xFFFF;
+                    addSignatureClasses(refs, utf8(descIndex));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        accessFlags = u2();
+        className = classNameAt(u2());
+        int superIndex = u2();
+        superClassName = superIndex != 0 ? classNameAt(superIndex) : null;
+        int interfaceCount = u2();
+        interfaceNames = new ArrayList<>(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaceNames.add(classNameAt(u2()));
+        }
+
+        fields = readMembers(refs);
+        methods = readMembers(refs);
+        Attributes attrs = readAttributes(refs);
+        sourceFile = attrs.sourceFile;
+        signature = attrs.signature;
+        innerClassAccessFlags = attrs.innerClassAccessFlags;
+
+        refs.remove(className);
+        referencedClasses = refs;
+    }
+
+    public static ClassFile parse(byte[] bytes) {
+        try {
+            return new ClassFile(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated or malformed class file", e);
+        }
+    }
+
+    public static ClassFile read(Path classFile) {
+        try {
+            return parse(Files.readAllBytes(classFile));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Failed to read class file " + classFile, e);
+        }
+    }
+
+    public static String memberRef(String owner, String name) {
+        return owner + "#" + name;
+    }
+
+    public static String internalToBinaryName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    private List<Member> readMembers(Set<String> refs) {
+        int count = u2();
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int accessFlags = u2();
+            String name = utf8(u2());
+            String descriptor = utf8(u2());
+            addSignatureClasses(refs, descriptor);
+            members.add(new Member(accessFlags, name, descriptor, readAttributes(refs)));
+        }
+        return members;
+    }
+
+    private Attributes readAttributes(Set<String> refs) {
+        Attributes attrs = new Attributes();
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            String name = utf8(u2());
+            int length = buf.getInt();
+            int end = buf.position() + length;
+            switch (name) {
+                case "SourceFile":
+                    attrs.sourceFile = utf8(u2());
+                    break;
+                case "Signature":
+                    attrs.signature = utf8(u2());
+                    addSignatureClasses(refs, attrs.signature);
+                    break;
+                case "InnerClasses":
+                    int classCount = u2();
+                    for (int c = 0; c < classCount; c++) {
+                        int innerIndex = u2();
+                        u2(); // outer class
+                        u2(); // simple name
+                        int innerFlags = u2();
+                        if (classNameAt(innerIndex).equals(className)) {
+                            attrs.innerClassAccessFlags = innerFlags;
+                        }
+                    }
+                    break;
+                case "ConstantValue":
+                    attrs.constantValue = constantToString(u2());
+                    break;
+                case "Exceptions":
+                    int exceptionCount = u2();
+                    for (int e = 0; e < exceptionCount; e++) {
+                        attrs.exceptions.add(classNameAt(u2()));
+                    }
+                    break;
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations":
+                    readAnnotations(refs);
+                    break;
+                case "RuntimeVisibleParameterAnnotations":
+                case "RuntimeInvisibleParameterAnnotations":
+                    int paramCount = u1();
+                    for (int p = 0; p < paramCount; p++) {
+                        readAnnotations(refs);
+                    }
+                    break;
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations":
+                    int typeAnnotationCount = u2();
+                    for (int a = 0; a < typeAnnotationCount; a++) {
+                        readTypeAnnotation(refs);
+                    }
+                    break;
+                case "AnnotationDefault":
+                    readElementValue(refs);
+                    break;
+                case "Code":
+                    // type annotations of local variables, casts, etc. are kept in attributes of method code
+                    u2(); // max stack
+                    u2(); // max locals
+                    skip(buf.getInt());
+                    skip(u2() * 8); // exception table
+                    readAttributes(refs);
+                    break;
+                default:
+                    break;
+            }
+            buf.position(end);
+        }
+        return attrs;
+    }
+
+    private String constantToString(int cpIndex) {
+        int offset = cpOffsets[cpIndex];
+        switch (cpTags[cpIndex]) {
+            case CONSTANT_INTEGER:
+                return Integer.toString(buf.getInt(offset));
+            case CONSTANT_FLOAT:
+                return Float.toString(buf.getFloat(offset));
+            case CONSTANT_LONG:
+                return Long.toString(buf.getLong(offset));
+            case CONSTANT_DOUBLE:
+                return Double.toString(buf.getDouble(offset));
+            case CONSTANT_STRING:
+                return '"' + utf8At(offset) + '"';
+            default:
+                throw new IllegalArgumentException("Constant pool entry " + cpIndex + " is not a constant value");
+        }
+    }
+
+    private void readAnnotations(Set<String> refs) {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            readAnnotation(refs);
+        }
+    }
+
+    // elements set, as well as enum constants used, are recorded as member references: there are no Methodref /
+    // Fieldref constants for them
+    private void readAnnotation(Set<String> refs) {
+        String type = utf8(u2());
+        addSignatureClasses(refs, type);
+        int pairCount = u2();
+        for (int i = 0; i < pairCount; i++) {
+            memberRefs.add(memberRef(descriptorToClassName(type), utf8(u2())));
+            readElementValue(refs);
+        }
+    }
+
+    // target and type path of a type annotation are skipped, see JVMS 4.7.20
+    private void readTypeAnnotation(Set<String> refs) {
+        int targetType = u1();
+        switch (targetType) {
+            case 0x00: // type parameter
+            case 0x01:
+            case 0x16: // formal parameter
+                skip(1);
+                break;
+            case 0x10: // supertype
+            case 0x11: // type parameter bound
+            case 0x12:
+            case 0x17: // throws
+            case 0x42: // catch
+            case 0x43: // instanceof, new, method references
+            case 0x44:
+            case 0x45:
+            case 0x46:
+                skip(2);
+                break;
+            case 0x13: // field, method return type, receiver
+            case 0x14:
+            case 0x15:
+                break;
+            case 0x40: // local variable
+            case 0x41:
+                skip(u2() * 6);
+                break;
+            case 0x47: // cast, type arguments of calls
+            case 0x48:
+            case 0x49:
+            case 0x4A:
+            case 0x4B:
+                skip(3);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type annotation target " + targetType);
+        }
+        skip(u1() * 2); // type path
+        readAnnotation(refs);
+    }
+
+    private void readElementValue(Set<String> refs) {
+        int tag = u1();
+        switch (tag) {
+            case 'e':
+                String enumType = utf8(u2());
+                addSignatureClasses(refs, enumType);
+                memberRefs.add(memberRef(descriptorToClassName(enumType), utf8(u2())));
+                break;
+            case 'c':
+                addSignatureClasses(refs, utf8(u2()));
+                break;
+            case '@':
+                readAnnotation(refs);
+                break;
+            case '[':
+                int count = u2();
+                for (int i = 0; i < count; i++) {
+                    readElementValue(refs);
+                }
+                break;
+            default:
+                u2(); // constant value index
+                break;
+        }
+    }
+
+    // "Lp/C;" -> "p.C"
+    private static String descriptorToClassName(String descriptor) {
+        return internalToBinaryName(descriptor.substring(1, descriptor.length() - 1));
+    }
+
+    private String classNameAt(int cpIndex) {
+        return internalToBinaryName(utf8At(cpOffsets[cpIndex]));
+    }
+
+    private String utf8At(int offset) {
+        return utf8(buf.getShort(offset) & 0xFFFF);
+    }
+
+    private String utf8(int cpIndex) {
+        String s = utf8Cache[cpIndex];
+        if (s == null) {
+            if (cpTags[cpIndex] != CONSTANT_UTF8) {
+                throw new IllegalArgumentException("Constant pool entry " + cpIndex + " is not UTF8");
+            }
+            s = decodeModifiedUtf8(cpOffsets[cpIndex]);
+            utf8Cache[cpIndex] = s;
+        }
+        return s;
+    }
+
+    private String decodeModifiedUtf8(int offset) {
+        int length = buf.getShort(offset) & 0xFFFF;
+        int pos = offset + 2;
+        int end = pos + length;
+        char[] chars = new char[length];
+        int n = 0;
+        while (pos < end) {
+            int b = buf.get(pos++) & 0xFF;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[n++] = (char) (((b & 0x1F) << 6) | (buf.get(pos++) & 0x3F));
+            } else {
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((buf.get(pos++) & 0x3F) << 6) | (buf.get(pos++) & 0x3F));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    private int u1() {
+        return buf.get() & 0xFF;
+    }
+
+    private int u2() {
+        return buf.getShort() & 0xFFFF;
+    }
+
+    private void skip(int n) {
+        buf.position(buf.position() + n);
+    }
+
+    private static void addClassOrArray(Set<String> refs, String internalName) {
+        if (internalName.startsWith("[")) {
+            addSignatureClasses(refs, internalName);
+        } else {
+            refs.add(internalToBinaryName(internalName));
+        }
+    }
+
+    // Collects class names from field / method descriptor or generic signature (JVMS 4.3, 4.7.9.1)
+    static void addSignatureClasses(Set<String> refs, String sig) {
+        int i = 0;
+        if (sig.startsWith("<")) {
+            i = skipFormalTypeParameters(refs, sig, 0);
+        }
+        while (i < sig.length()) {
+            char c = sig.charAt(i);
+            if (c == 'L' || c == 'T' || c == '[') {
+                i = parseType(refs, sig, i);
+            } else {
+                i++; // '(', ')', '^', primitive types and void
+            }
+        }
+    }
+
+    private static int skipFormalTypeParameters(Set<String> refs, String sig, int i) {
+        i++; // '<'
+        while (sig.charAt(i) != '>') {
+            i = sig.indexOf(':', i); // skip identifier
+            while (sig.charAt(i) == ':') {
+                i++;
+                if (sig.charAt(i) != ':' && sig.charAt(i) != '>') {
+                    i = parseType(refs, sig, i);
+                }
+            }
+        }
+        return i + 1;
+    }
+
+    private static int parseType(Set<String> refs, String sig, int i) {
+        char c = sig.charAt(i);
+        switch (c) {
+            case '[':
+                return parseType(refs, sig, i + 1);
+            case 'T':
+                return sig.indexOf(';', i) + 1;
+            case 'L':
+                StringBuilder name = new StringBuilder();
+                i++;
+                while (true) {
+                    c = sig.charAt(i);
+                    if (c == ';') {
+                        refs.add(internalToBinaryName(name.toString()));
+                        return i + 1;
+                    } else if (c == '<') {
+                        i = parseTypeArguments(refs, sig, i);
+                    } else if (c == '.') {
+                        name.append('$');
+                        i++;
+                    } else {
+                        name.append(c);
+                        i++;
+                    }
+                }
+            default:
+                return i + 1; // primitive type
+        }
+    }
+
+    private static int parseTypeArguments(Set<String> refs, String sig, int i) {
+        i++; // '<'
+        while (sig.charAt(i) != '>') {
+            char c = sig.charAt(i);
+            if (c == '*') {
+                i++;
+            } else if (c == '+' || c == '-') {
+                i = parseType(refs, sig, i + 1);
+            } else {
+                i = parseType(refs, sig, i);
+            }
+        }
+        return i + 1;
+    }
+}
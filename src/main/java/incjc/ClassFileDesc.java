@@ -6,10 +6,12 @@ public class ClassFileDesc {
     public final String fullClassName;
     public final Set<String> dependsOn;
     public final String sourceFile;
+    public final String abiHash;
 
-    public ClassFileDesc(String fullClassName, Set<String> dependsOn, String sourceFile) {
+    public ClassFileDesc(String fullClassName, Set<String> dependsOn, String sourceFile, String abiHash) {
         this.fullClassName = fullClassName;
         this.dependsOn = dependsOn;
         this.sourceFile = sourceFile;
+        this.abiHash = abiHash;
     }
 }
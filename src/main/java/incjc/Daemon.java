@@ -0,0 +1,191 @@
+package incjc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import static incjc.Debug.debug;
+
+/*
+ * Long-living incjc process, which keeps JVM, in-process compiler and metainfo (including source file stats) warm
+ * between builds. Serves requests of DaemonClient over a loopback socket, one at a time.
+ *
+ * Request: token, command, argument count (int), arguments (modified UTF-8 strings).
+ * Response: sequence of frames -- type (byte), followed either by length (int) and bytes of stdout / stderr output,
+ * or by exit code (int), which completes the response.
+ */
+public class Daemon {
+
+    static final String COMPILE = "compile";
+    static final String STOP = "stop";
+
+    static final int STDOUT_FRAME = 1;
+    static final int STDERR_FRAME = 2;
+    static final int EXIT_FRAME = 3;
+
+    // exit code of a daemon started while another one with the same key is running
+    static final int RETVAL_ALREADY_RUNNING = 3;
+
+    private static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 180;
+    // client connected is expected to send its request right away, so that it does not block other clients
+    private static final int REQUEST_READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+    // INCJC_DAEMON_IDLE_TIMEOUT sets number of minutes without requests after which daemon exits; returns exit code
+    public static int serve(String key) {
+        String idleTimeoutEnv = System.getenv("INCJC_DAEMON_IDLE_TIMEOUT");
+        long idleTimeoutMinutes = idleTimeoutEnv != null ? Long.parseLong(idleTimeoutEnv) : DEFAULT_IDLE_TIMEOUT_MINUTES;
+        byte[] tokenBytes = new byte[16];
+        new SecureRandom().nextBytes(tokenBytes);
+        String token = Hex.encodeHexString(tokenBytes);
+        Path stateFile = DaemonClient.stateFile(key);
+
+        // lock file is held while daemon runs, so that of daemons started by several clients at once only one serves
+        FileChannel lock;
+        try {
+            Files.createDirectories(stateFile.getParent());
+            lock = FileChannel.open(DaemonClient.lockFile(key), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (lock.tryLock() == null) {
+                lock.close();
+                System.out.println("incjc daemon " + key + " is already running, exiting");
+                return RETVAL_ALREADY_RUNNING;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to lock incjc daemon " + key, e);
+        }
+
+        MetaInfo.enableCache();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.MINUTES.toMillis(idleTimeoutMinutes)));
+            DaemonClient.writeState(stateFile, new DaemonClient.State(server.getLocalPort(), token));
+            System.out.println("incjc daemon " + key + " listening on port " + server.getLocalPort());
+            while (true) {
+                Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketTimeoutException e) {
+                    System.out.println("No requests for " + idleTimeoutMinutes + " minutes, exiting");
+                    break;
+                }
+                try (Socket s = socket) {
+                    if (!handle(s, token)) {
+                        System.out.println("Stop requested, exiting");
+                        break;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Failed to handle request: " + e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to run incjc daemon", e);
+        } finally {
+            DaemonClient.deleteState(stateFile, token);
+            IOUtils.closeQuietly(lock);
+        }
+        return 0;
+    }
+
+    // returns false if daemon should stop
+    private static boolean handle(Socket socket, String token) throws IOException {
+        socket.setSoTimeout(REQUEST_READ_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        byte[] requestToken = in.readUTF().getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), requestToken)) {
+            System.out.println("Ignoring request with wrong token");
+            return true;
+        }
+        String command = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+
+        if (STOP.equals(command)) {
+            writeExit(out, 0);
+            return false;
+        }
+        if (!COMPILE.equals(command)) {
+            throw new IOException("Unknown daemon command " + command);
+        }
+
+        // everything incjc prints, including output of compiler and parallel tasks, goes to the client
+        PrintStream daemonOut = System.out;
+        PrintStream daemonErr = System.err;
+        PrintStream requestOut = new PrintStream(new FrameOutputStream(out, STDOUT_FRAME), true);
+        PrintStream requestErr = new PrintStream(new FrameOutputStream(out, STDERR_FRAME), true);
+        int retval;
+        try {
+            System.setOut(requestOut);
+            System.setErr(requestErr);
+            debug("Daemon request: " + String.join(" ", args));
+            retval = IncJC.run(args);
+            requestOut.flush();
+            requestErr.flush();
+        } finally {
+            System.setOut(daemonOut);
+            System.setErr(daemonErr);
+        }
+        if (retval == IncJC.RETVAL_UNEXPECTED_FAILURE) {
+            MetaInfo.clearCache();
+        }
+        writeExit(out, retval);
+        return true;
+    }
+
+    private static void writeExit(DataOutputStream out, int retval) throws IOException {
+        synchronized (out) {
+            out.writeByte(EXIT_FRAME);
+            out.writeInt(retval);
+            out.flush();
+        }
+    }
+
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameOutputStream(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+}
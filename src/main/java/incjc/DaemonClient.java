@@ -0,0 +1,271 @@
+package incjc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Sends build requests to a daemon, starting one if needed. Daemons are identified by a key derived from everything
+ * incjc behavior depends on besides its arguments: incjc code, JVM, environment variables. A daemon started with
+ * different code or environment (stale one) is not used, and exits once idle timeout expires.
+ *
+ * Daemon port and access token are kept in $HOME/.incjc-daemon/<key>.state, daemon output goes to <key>.log.
+ */
+public class DaemonClient {
+
+    private static final long DAEMON_START_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(20);
+    private static final long DAEMON_START_POLL_MILLIS = 50;
+
+    static class State {
+        final int port;
+        final String token;
+
+        State(int port, String token) {
+            this.port = port;
+            this.token = token;
+        }
+    }
+
+    public static int compile(String[] args) {
+        if (args.length != 2) {
+            System.err.println(IncJC.USAGE);
+            return IncJC.RETVAL_UNEXPECTED_FAILURE;
+        }
+        String[] absArgs = {
+            Paths.get(args[0]).toAbsolutePath().toString(),
+            Paths.get(args[1]).toAbsolutePath().toString()
+        };
+
+        String classpathEnv = absoluteClasspathEnv();
+        String key = daemonKey(classpathEnv);
+        Path stateFile = stateFile(key);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            State state = readState(stateFile);
+            if (state == null) {
+                state = startDaemon(key, classpathEnv);
+                if (state == null) {
+                    break;
+                }
+            }
+            Socket socket;
+            try {
+                socket = new Socket(InetAddress.getLoopbackAddress(), state.port);
+            } catch (IOException e) {
+                debug("Failed to connect to incjc daemon " + key + ": " + e);
+                deleteState(stateFile, state.token); // daemon is gone
+                continue;
+            }
+            return request(socket, state.token, Daemon.COMPILE, absArgs);
+        }
+
+        System.err.println("Failed to start incjc daemon, see " + logFile(key) + "; compiling without daemon");
+        return IncJC.run(absArgs);
+    }
+
+    public static int stop() {
+        String key = daemonKey(absoluteClasspathEnv());
+        State state = readState(stateFile(key));
+        if (state == null) {
+            System.out.println("No incjc daemon running.");
+            return 0;
+        }
+        try {
+            return request(new Socket(InetAddress.getLoopbackAddress(), state.port), state.token, Daemon.STOP);
+        } catch (IOException e) {
+            deleteState(stateFile(key), state.token);
+            System.out.println("No incjc daemon running.");
+            return 0;
+        }
+    }
+
+    private static int request(Socket socket, String token, String command, String... args) {
+        try (Socket s = socket) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF(token);
+            out.writeUTF(command);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            while (true) {
+                int type = in.readUnsignedByte();
+                if (type == Daemon.EXIT_FRAME) {
+                    return in.readInt();
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                PrintStream target = type == Daemon.STDERR_FRAME ? System.err : System.out;
+                target.write(bytes);
+                target.flush();
+            }
+        } catch (EOFException e) {
+            System.err.println("FAILURE: incjc daemon closed connection unexpectedly");
+            return IncJC.RETVAL_UNEXPECTED_FAILURE;
+        } catch (IOException e) {
+            System.err.println("FAILURE: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return IncJC.RETVAL_UNEXPECTED_FAILURE;
+        }
+    }
+
+    @Nullable
+    private static State startDaemon(String key, @Nullable String classpathEnv) {
+        Path stateFile = stateFile(key);
+        try {
+            Files.createDirectories(stateFile.getParent());
+            ProcessBuilder pb = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Duser.home=" + System.getProperty("user.home"),
+                "-cp", System.getProperty("java.class.path"),
+                IncJC.class.getName(), IncJC.SERVE_OPTION, key);
+            if (classpathEnv != null) {
+                pb.environment().put("CLASSPATH", classpathEnv);
+            }
+            String reportEnv = absoluteReportEnv();
+            if (reportEnv != null) {
+                pb.environment().put(BuildReport.REPORT_ENV, reportEnv);
+            }
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile(key).toFile()));
+            debug("Starting incjc daemon: " + String.join(" ", pb.command()));
+            Process p = pb.start();
+            p.getOutputStream().close();
+
+            // daemon started exits right away if another one (e.g. started by another client) runs already, so that
+            // state of that one is waited for
+            long deadline = System.currentTimeMillis() + DAEMON_START_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline
+                && (p.isAlive() || p.exitValue() == Daemon.RETVAL_ALREADY_RUNNING))
+            {
+                State state = readState(stateFile);
+                if (state != null) {
+                    return state;
+                }
+                Thread.sleep(DAEMON_START_POLL_MILLIS);
+            }
+            return readState(stateFile);
+        } catch (IOException | InterruptedException e) {
+            debug("Failed to start incjc daemon: " + e);
+            return null;
+        }
+    }
+
+    // CLASSPATH entries are made absolute, as daemon may serve clients from different working directories
+    @Nullable
+    private static String absoluteClasspathEnv() {
+        String classpathEnv = System.getenv("CLASSPATH");
+        if (classpathEnv == null) {
+            return null;
+        }
+        return Stream.of(classpathEnv.split(File.pathSeparator))
+            .map(entry -> entry.isEmpty() ? entry : Paths.get(entry).toAbsolutePath().toString())
+            .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    // same for the report file
+    @Nullable
+    private static String absoluteReportEnv() {
+        String reportEnv = System.getenv(BuildReport.REPORT_ENV);
+        return reportEnv == null || reportEnv.isEmpty() ? reportEnv : Paths.get(reportEnv).toAbsolutePath().toString();
+    }
+
+    private static String daemonKey(@Nullable String classpathEnv) {
+        List<String> parts = new ArrayList<>();
+        parts.add(System.getProperty("java.home"));
+        parts.add(System.getProperty("user.home"));
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            // rebuilt incjc jar makes running daemon stale
+            File file = new File(entry);
+            parts.add(entry + ":" + file.length() + ":" + file.lastModified());
+        }
+        parts.add("CLASSPATH=" + classpathEnv);
+        Map<String, String> env = new TreeMap<>(System.getenv());
+        env.forEach((name, value) -> {
+            if (name.equals(BuildReport.REPORT_ENV)) {
+                parts.add(name + "=" + absoluteReportEnv());
+            } else if (name.startsWith("INCJC_") || name.equals("JAVA_HOME") || name.equals("JDK_HOME")) {
+                parts.add(name + "=" + value);
+            }
+        });
+        return DigestUtils.md5Hex(String.join("\n", parts));
+    }
+
+    static Path stateFile(String key) {
+        return daemonDir().resolve(key + ".state");
+    }
+
+    static Path lockFile(String key) {
+        return daemonDir().resolve(key + ".lock");
+    }
+
+    private static Path logFile(String key) {
+        return daemonDir().resolve(key + ".log");
+    }
+
+    private static Path daemonDir() {
+        return Paths.get(System.getProperty("user.home"), ".incjc-daemon");
+    }
+
+    @Nullable
+    private static State readState(Path stateFile) {
+        try {
+            String[] fields = new String(Files.readAllBytes(stateFile), StandardCharsets.US_ASCII).trim().split(" ");
+            return new State(Integer.parseInt(fields[0]), fields[1]);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static void writeState(Path stateFile, State state) throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path tmpFile = Files.createTempFile(stateFile.getParent(), stateFile.getFileName().toString(), ".tmp");
+        // token grants running builds on behalf of the user
+        tmpFile.toFile().setReadable(false, false);
+        tmpFile.toFile().setReadable(true, true);
+        Files.write(tmpFile, (state.port + " " + state.token).getBytes(StandardCharsets.US_ASCII));
+        try {
+            Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile, stateFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // state file is only deleted if it still belongs to the daemon given, not to a newer one
+    static void deleteState(Path stateFile, String token) {
+        State state = readState(stateFile);
+        if (state != null && state.token.equals(token)) {
+            try {
+                Files.deleteIfExists(stateFile);
+            } catch (IOException e) {
+                debug("Failed to delete " + stateFile + ": " + e);
+            }
+        }
+    }
+}
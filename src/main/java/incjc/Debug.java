@@ -1,9 +1,11 @@
 package incjc;
 
 import com.google.common.collect.Sets;
+import java.util.Set;
 
 public abstract class Debug {
-    public static final boolean DEBUG_ENABLED = Sets.newHashSet("1", "true", "TRUE", "yes", "Y").contains(System.getenv("INCJC_DEBUG"));
+    public static final Set<String> TRUE_VALUES = Sets.newHashSet("1", "true", "TRUE", "yes", "Y");
+    public static final boolean DEBUG_ENABLED = TRUE_VALUES.contains(System.getenv("INCJC_DEBUG"));
 
     public static void debug(String msg) {
         if (DEBUG_ENABLED) {
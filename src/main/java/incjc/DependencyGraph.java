@@ -0,0 +1,345 @@
+package incjc;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+// Class dependency graph: edge A -> B means "B depends on A". Class names are mapped to int IDs once; forward
+// (dependents) and reverse (dependencies) adjacency of each class is kept in primitive int arrays. IDs of classes left
+// without edges are only dropped by compact, which metainfo calls once its snapshot is rewritten.
+public class DependencyGraph {
+
+    private static final int[] NO_EDGES = new int[0];
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private int[][] dependents = new int[16][];
+    private int[] dependentCounts = new int[16];
+    private int[][] dependencies = new int[16][];
+    private int[] dependencyCounts = new int[16];
+
+    private int edgeCount;
+
+    // visited set of the last search, kept for the next one; taken by a search, so that concurrent ones do not share it
+    private final AtomicReference<BitSet> scratch = new AtomicReference<>();
+
+    // run before each access, so that the graph can be filled lazily (see MetaInfo)
+    private final Runnable beforeAccess;
+
+    public DependencyGraph() {
+        this(() -> { });
+    }
+
+    DependencyGraph(Runnable beforeAccess) {
+        this.beforeAccess = beforeAccess;
+    }
+
+    public int size() {
+        beforeAccess.run();
+        return names.size();
+    }
+
+    public int edgeCount() {
+        beforeAccess.run();
+        return edgeCount;
+    }
+
+    public boolean addEdge(String cls, String dependent) {
+        beforeAccess.run();
+        int from = idOf(cls);
+        int to = idOf(dependent);
+        if (!insert(dependents, dependentCounts, from, to)) {
+            return false;
+        }
+        insert(dependencies, dependencyCounts, to, from);
+        edgeCount++;
+        return true;
+    }
+
+    public boolean removeEdge(String cls, String dependent) {
+        beforeAccess.run();
+        Integer from = ids.get(cls);
+        Integer to = ids.get(dependent);
+        if (from == null || to == null || !remove(dependents, dependentCounts, from, to)) {
+            return false;
+        }
+        remove(dependencies, dependencyCounts, to, from);
+        edgeCount--;
+        return true;
+    }
+
+    // removes edges to all dependents of the class given
+    public void removeDependents(String cls) {
+        beforeAccess.run();
+        Integer from = ids.get(cls);
+        if (from == null) {
+            return;
+        }
+        for (int i = 0; i < dependentCounts[from]; i++) {
+            remove(dependencies, dependencyCounts, dependents[from][i], from);
+        }
+        edgeCount -= dependentCounts[from];
+        dependentCounts[from] = 0;
+        dependents[from] = NO_EDGES;
+    }
+
+    public Set<String> dependentsOf(String cls) {
+        beforeAccess.run();
+        Integer id = ids.get(cls);
+        return id == null ? Collections.emptySet() : new NameSet(dependents[id], dependentCounts[id]);
+    }
+
+    public Set<String> dependenciesOf(String cls) {
+        beforeAccess.run();
+        Integer id = ids.get(cls);
+        return id == null ? Collections.emptySet() : new NameSet(dependencies[id], dependencyCounts[id]);
+    }
+
+    // iterates over classes having dependents, together with their dependents
+    public void forEach(BiConsumer<String, Set<String>> consumer) {
+        beforeAccess.run();
+        for (int id = 0; id < names.size(); id++) {
+            if (dependentCounts[id] > 0) {
+                consumer.accept(names.get(id), new NameSet(dependents[id], dependentCounts[id]));
+            }
+        }
+    }
+
+    // classes given plus all classes transitively depending on them; costs in proportion to the result size
+    public Set<String> reachableFrom(Collection<String> classes) {
+        beforeAccess.run();
+        BitSet visited = takeVisited();
+        int[] queue = new int[Math.max(16, classes.size())];
+        int tail = 0;
+        for (String cls : classes) {
+            Integer id = ids.get(cls);
+            if (id != null && !visited.get(id)) {
+                visited.set(id);
+                queue = append(queue, tail++, id);
+            }
+        }
+
+        Set<String> result = new HashSet<>(classes);
+        for (int head = 0; head < tail; head++) {
+            int id = queue[head];
+            for (int i = 0; i < dependentCounts[id]; i++) {
+                int dep = dependents[id][i];
+                if (!visited.get(dep)) {
+                    visited.set(dep);
+                    queue = append(queue, tail++, dep);
+                    result.add(names.get(dep));
+                }
+            }
+        }
+        releaseVisited(visited, queue, tail);
+        return result;
+    }
+
+    // same as above, each class mapped to the class it has been reached from (classes given -- to themselves), so that
+    // following the mapping gives the shortest path back to classes given
+    public Map<String, String> reachableFromWithPredecessors(Collection<String> classes) {
+        beforeAccess.run();
+        BitSet visited = takeVisited();
+        int[] queue = new int[Math.max(16, classes.size())];
+        int tail = 0;
+        Map<String, String> result = new HashMap<>();
+        for (String cls : classes) {
+            result.put(cls, cls);
+            Integer id = ids.get(cls);
+            if (id != null && !visited.get(id)) {
+                visited.set(id);
+                queue = append(queue, tail++, id);
+            }
+        }
+
+        for (int head = 0; head < tail; head++) {
+            int id = queue[head];
+            for (int i = 0; i < dependentCounts[id]; i++) {
+                int dep = dependents[id][i];
+                if (!visited.get(dep)) {
+                    visited.set(dep);
+                    queue = append(queue, tail++, dep);
+                    result.putIfAbsent(names.get(dep), names.get(id));
+                }
+            }
+        }
+        releaseVisited(visited, queue, tail);
+        return result;
+    }
+
+    // drops classes left without edges, renumbering the rest in the same order; views are not valid after that
+    public void compact() {
+        beforeAccess.run();
+        int[] newIds = new int[names.size()];
+        int count = 0;
+        for (int id = 0; id < names.size(); id++) {
+            newIds[id] = dependentCounts[id] > 0 || dependencyCounts[id] > 0 ? count++ : -1;
+        }
+        if (count == names.size()) {
+            return;
+        }
+        int length = Math.max(16, count);
+        int[][] newDependents = new int[length][];
+        int[] newDependentCounts = new int[length];
+        int[][] newDependencies = new int[length][];
+        int[] newDependencyCounts = new int[length];
+        List<String> newNames = new ArrayList<>(count);
+        ids.clear();
+        for (int id = 0; id < names.size(); id++) {
+            int newId = newIds[id];
+            if (newId < 0) {
+                continue;
+            }
+            // renumbering keeps the order, so adjacency arrays stay sorted
+            newDependents[newId] = renumber(dependents[id], dependentCounts[id], newIds);
+            newDependentCounts[newId] = dependentCounts[id];
+            newDependencies[newId] = renumber(dependencies[id], dependencyCounts[id], newIds);
+            newDependencyCounts[newId] = dependencyCounts[id];
+            newNames.add(names.get(id));
+            ids.put(names.get(id), newId);
+        }
+        names.clear();
+        names.addAll(newNames);
+        dependents = newDependents;
+        dependentCounts = newDependentCounts;
+        dependencies = newDependencies;
+        dependencyCounts = newDependencyCounts;
+        scratch.set(null);
+    }
+
+    private static int[] renumber(int[] array, int count, int[] newIds) {
+        if (count == 0) {
+            return NO_EDGES;
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = newIds[array[i]];
+        }
+        return result;
+    }
+
+    private BitSet takeVisited() {
+        BitSet visited = scratch.getAndSet(null);
+        return visited != null ? visited : new BitSet(names.size());
+    }
+
+    // only bits of classes visited are cleared, so that reusing the set costs in proportion to the result size too
+    private void releaseVisited(BitSet visited, int[] queue, int tail) {
+        for (int i = 0; i < tail; i++) {
+            visited.clear(queue[i]);
+        }
+        scratch.set(visited);
+    }
+
+    private int idOf(String cls) {
+        Integer id = ids.get(cls);
+        if (id == null) {
+            id = names.size();
+            ids.put(cls, id);
+            names.add(cls);
+            if (id == dependents.length) {
+                int newLength = id * 2;
+                dependents = Arrays.copyOf(dependents, newLength);
+                dependentCounts = Arrays.copyOf(dependentCounts, newLength);
+                dependencies = Arrays.copyOf(dependencies, newLength);
+                dependencyCounts = Arrays.copyOf(dependencyCounts, newLength);
+            }
+            dependents[id] = NO_EDGES;
+            dependencies[id] = NO_EDGES;
+        }
+        return id;
+    }
+
+    private static int[] append(int[] array, int count, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, Math.max(4, count * 2));
+        }
+        array[count] = value;
+        return array;
+    }
+
+    // adjacency arrays are kept sorted, so that edge lookup is a binary search
+    private static boolean insert(int[][] adjacency, int[] counts, int id, int value) {
+        int[] array = adjacency[id];
+        int count = counts[id];
+        int index = Arrays.binarySearch(array, 0, count, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (count == array.length) {
+            array = Arrays.copyOf(array, Math.max(4, count * 2));
+            adjacency[id] = array;
+        }
+        System.arraycopy(array, index, array, index + 1, count - index);
+        array[index] = value;
+        counts[id]++;
+        return true;
+    }
+
+    private static boolean remove(int[][] adjacency, int[] counts, int id, int value) {
+        int[] array = adjacency[id];
+        int index = Arrays.binarySearch(array, 0, counts[id], value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(array, index + 1, array, index, counts[id] - index - 1);
+        counts[id]--;
+        return true;
+    }
+
+    // read-only view of adjacency array, not valid after graph modification
+    private class NameSet extends AbstractSet<String> {
+        private final int[] array;
+        private final int count;
+
+        NameSet(int[] array, int count) {
+            this.array = array;
+            this.count = count;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < count;
+                }
+
+                @Override
+                public String next() {
+                    if (i >= count) {
+                        throw new NoSuchElementException();
+                    }
+                    return names.get(array[i++]);
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            Integer id = ids.get(o);
+            return id != null && Arrays.binarySearch(array, 0, count, id) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package incjc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Tracks classes of external classpath (CLASSPATH environment variable, or outputs of other modules) project classes
+ * depend on. ABI fingerprints of those classes are kept in metainfo next to fingerprints of project classes, and
+ * their class files are copied to "external" subdirectory of metainfo directory. Once some classpath entry changes
+ * (e.g. a dependency jar is upgraded), class files of the classes tracked are compared to their copies the same way
+ * as class files of recompiled project classes are compared to their previous versions, so that only dependents using
+ * changed members are recompiled.
+ *
+ * Supertypes of those classes are tracked as well, since members inherited from them are used through subclasses:
+ * edges from supertypes to external subclasses are kept in the dependency graph, and subclasses inherit ABI changes
+ * of their supertypes, same as project classes do.
+ *
+ * Stamps of classpath entries are kept in external/classpath.txt, so that unchanged entries are not read: size and
+ * mtime of a jar, or a digest of names, sizes and mtimes of all class files in a directory. Walking a directory is
+ * avoided for outputs of other incjc builds (e.g. other modules): a build deletes a marker of its classpath directory
+ * before modifying it and writes a new one with a random token once it succeeds, so the token stands for the contents.
+ * Markers are kept in home directory next to metainfo directories, as $HOME/.incjc-built-<digest of the directory>.
+ */
+public class ExternalClasspath {
+
+    private static final String EXTERNAL_DIR = "external";
+    private static final String STAMPS_FILE = "classpath.txt";
+    private static final String CLASSES_DIR = "classes";
+    private static final String FIELD_SEP = "->";
+
+    private final Path externalDir;
+    private final List<Path> entries;
+    private final List<String> stamps;
+    private final boolean changed;
+
+    // new ABI fingerprints of changed classes, null for classes no longer found
+    private final Map<String, String> changedAbiHashes = new HashMap<>();
+
+    // written by save, once metainfo is saved
+    private final Map<String, byte[]> classesToCopy = new HashMap<>();
+    private final Set<String> classesToDelete = new HashSet<>();
+
+    private ExternalClasspath(String metaDir, List<Path> entries) {
+        this.externalDir = Paths.get(metaDir, EXTERNAL_DIR);
+        this.entries = entries;
+        this.stamps = entries.stream().map(ExternalClasspath::stamp).collect(Collectors.toList());
+        this.changed = !stamps.equals(readStamps());
+    }
+
+    public static ExternalClasspath of(String metaDir, @Nullable String externalClasspath) {
+        return new ExternalClasspath(metaDir, entries(externalClasspath));
+    }
+
+    // entries in the order javac searches them; "dir/*" stands for all jars in a directory
+    static List<Path> entries(@Nullable String externalClasspath) {
+        List<Path> result = new ArrayList<>();
+        if (externalClasspath == null) {
+            return result;
+        }
+        for (String entry : externalClasspath.split(File.pathSeparator)) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            if (entry.equals("*") || entry.endsWith(File.separator + "*")) {
+                Path dir = Paths.get(entry.substring(0, entry.length() - 1)).toAbsolutePath();
+                try (Stream<Path> files = Files.list(dir)) {
+                    files.filter(file -> file.getFileName().toString().toLowerCase().endsWith(".jar"))
+                        .sorted()
+                        .forEach(result::add);
+                } catch (IOException e) {
+                    debug("Failed to list classpath directory " + dir + ": " + e);
+                }
+            } else {
+                result.add(Paths.get(entry).toAbsolutePath());
+            }
+        }
+        return result;
+    }
+
+    // true if some classpath entry may have changed since the last build
+    public boolean changed() {
+        return changed;
+    }
+
+    // ABI changes of the classes tracked since the last build; classes no longer found are changed at class level
+    public Map<String, AbiChange> findAbiChanges(MetaInfo metaInfo) {
+        if (!changed) {
+            return Collections.emptyMap();
+        }
+        Set<String> trackedClasses = trackedClasses(metaInfo);
+        Map<String, AbiChange> ownChanges = new HashMap<>();
+        Map<String, List<String>> superTypes = new HashMap<>();
+        try (Lookup lookup = new Lookup()) {
+            for (String cls : trackedClasses) {
+                byte[] bytes = lookup.find(cls);
+                if (bytes == null) {
+                    ownChanges.put(cls, AbiChange.CLASS_LEVEL);
+                    changedAbiHashes.put(cls, null);
+                    continue;
+                }
+                ClassFile newCf = ClassFile.parse(bytes);
+                superTypes.put(cls, superTypes(newCf).stream().filter(trackedClasses::contains)
+                    .collect(Collectors.toList()));
+                String abiHash = Abi.fingerprint(newCf);
+                if (abiHash.equals(metaInfo.abiHashes.get(cls))) {
+                    continue;
+                }
+                changedAbiHashes.put(cls, abiHash);
+                Path copy = classCopy(cls);
+                ownChanges.put(cls, Files.exists(copy) ? AbiChange.between(ClassFile.read(copy), newCf)
+                    : AbiChange.CLASS_LEVEL);
+            }
+        }
+
+        Map<String, AbiChange> result = new HashMap<>();
+        Map<String, AbiChange> memo = new HashMap<>();
+        for (String cls : trackedClasses) {
+            AbiChange change = effectiveAbiChange(cls, ownChanges, superTypes, memo);
+            if (!change.isEmpty()) {
+                result.put(cls, change);
+            }
+        }
+        return result;
+    }
+
+    private static AbiChange effectiveAbiChange(String cls, Map<String, AbiChange> ownChanges,
+        Map<String, List<String>> superTypes, Map<String, AbiChange> memo)
+    {
+        AbiChange change = memo.get(cls);
+        if (change != null) {
+            return change;
+        }
+        change = ownChanges.getOrDefault(cls, AbiChange.NONE);
+        for (String superType : superTypes.getOrDefault(cls, Collections.emptyList())) {
+            change = change.merge(effectiveAbiChange(superType, ownChanges, superTypes, memo));
+        }
+        memo.put(cls, change);
+        return change;
+    }
+
+    // found by findAbiChanges, including changes not affecting any dependents
+    public Map<String, String> changedAbiHashes() {
+        return changedAbiHashes;
+    }
+
+    /*
+     * Records ABI of external classes project classes depend on now, together with their supertypes; should be called
+     * once metainfo has been updated with compiled classes. Classes tracked already are only looked up again if the
+     * classpath has changed, their supertypes are taken from the dependency graph otherwise. Classes not found on the
+     * classpath, as well as JDK classes, are not tracked.
+     */
+    public void update(MetaInfo metaInfo) {
+        Set<String> trackedClasses = trackedClasses(metaInfo);
+        Deque<String> queue = new ArrayDeque<>();
+        metaInfo.deps.forEach((cls, dependents) -> {
+            if (!metaInfo.classes.containsKey(cls) && dependents.stream().anyMatch(metaInfo.classes::containsKey)) {
+                queue.add(cls);
+            }
+        });
+
+        Set<String> visited = new HashSet<>();
+        Set<String> externalClasses = new HashSet<>();
+        try (Lookup lookup = new Lookup()) {
+            while (!queue.isEmpty()) {
+                String cls = queue.poll();
+                if (!visited.add(cls)) {
+                    continue;
+                }
+                if (!changed && trackedClasses.contains(cls)) {
+                    externalClasses.add(cls);
+                    queue.addAll(metaInfo.deps.dependenciesOf(cls));
+                    continue;
+                }
+                byte[] bytes = entries.isEmpty() || isJdkClass(cls) ? null : lookup.find(cls);
+                if (bytes == null) {
+                    continue;
+                }
+                externalClasses.add(cls);
+                ClassFile cf = ClassFile.parse(bytes);
+                List<String> clsSuperTypes = superTypes(cf).stream()
+                    .filter(superType -> !metaInfo.classes.containsKey(superType) && !isJdkClass(superType))
+                    .collect(Collectors.toList());
+                for (String superType : new ArrayList<>(metaInfo.deps.dependenciesOf(cls))) {
+                    if (!clsSuperTypes.contains(superType)) {
+                        metaInfo.removeDependency(superType, cls);
+                    }
+                }
+                for (String superType : clsSuperTypes) {
+                    metaInfo.addDependency(superType, cls);
+                }
+                queue.addAll(clsSuperTypes);
+                String abiHash = Abi.fingerprint(cf);
+                if (!abiHash.equals(metaInfo.abiHashes.get(cls))) {
+                    metaInfo.setAbiHash(cls, abiHash);
+                    classesToCopy.put(cls, bytes);
+                }
+            }
+        }
+
+        for (String cls : trackedClasses) {
+            if (!externalClasses.contains(cls)) {
+                untrack(metaInfo, cls);
+            }
+        }
+    }
+
+    // Copies of class files and classpath stamps are written after metainfo, so that a failure to save metainfo makes
+    // next build compare class files again
+    public void save() {
+        if (!changed && classesToCopy.isEmpty() && classesToDelete.isEmpty()) {
+            return;
+        }
+        try {
+            for (String cls : classesToDelete) {
+                Files.deleteIfExists(classCopy(cls));
+            }
+            for (Map.Entry<String, byte[]> copy : classesToCopy.entrySet()) {
+                Path file = classCopy(copy.getKey());
+                Files.createDirectories(file.getParent());
+                Files.write(file, copy.getValue());
+            }
+            writeStamps();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save external classpath info to " + externalDir, e);
+        }
+        classesToCopy.clear();
+        classesToDelete.clear();
+    }
+
+    private void untrack(MetaInfo metaInfo, String cls) {
+        metaInfo.removeAbiHash(cls);
+        for (String superType : new ArrayList<>(metaInfo.deps.dependenciesOf(cls))) {
+            metaInfo.removeDependency(superType, cls);
+        }
+        classesToCopy.remove(cls);
+        classesToDelete.add(cls);
+    }
+
+    // external classes are the ones with known ABI, which are not project classes
+    private static Set<String> trackedClasses(MetaInfo metaInfo) {
+        return metaInfo.abiHashes.keySet().stream()
+            .filter(cls -> !metaInfo.classes.containsKey(cls))
+            .collect(Collectors.toSet());
+    }
+
+    private static List<String> superTypes(ClassFile cf) {
+        List<String> result = new ArrayList<>(cf.interfaceNames);
+        if (cf.superClassName != null) {
+            result.add(cf.superClassName);
+        }
+        return result;
+    }
+
+    private static boolean isJdkClass(String cls) {
+        return JdkBasedClassFileExaminer.isStandardLibraryClass(cls)
+            || ClassLoader.getPlatformClassLoader().getResource(classFileName(cls)) != null;
+    }
+
+    private Path classCopy(String cls) {
+        return externalDir.resolve(CLASSES_DIR).resolve(classFileName(cls));
+    }
+
+    private static String classFileName(String cls) {
+        return cls.replace('.', '/') + ".class";
+    }
+
+    static String stamp(Path entry) {
+        try {
+            if (Files.isDirectory(entry)) {
+                Path marker = builtMarker(entry);
+                if (Files.exists(marker)) {
+                    // directory mtime catches files added or deleted at top level since, e.g. by hand
+                    return entry + FIELD_SEP + "built:" + String.join("", Files.readAllLines(marker)) + ":"
+                        + Files.getLastModifiedTime(entry).toMillis();
+                }
+                try (Stream<Path> files = Files.walk(entry)) {
+                    return entry + FIELD_SEP + DigestUtils.md5Hex(files
+                        .filter(file -> file.getFileName().toString().endsWith(".class"))
+                        .map(file -> {
+                            BasicFileAttributes attrs = SourceState.readAttributes(file);
+                            return String.format("%s:%d:%d", entry.relativize(file), attrs.size(),
+                                attrs.lastModifiedTime().toMillis());
+                        })
+                        .sorted()
+                        .collect(Collectors.joining("\n")));
+                }
+            }
+            BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+            return entry + FIELD_SEP + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        } catch (IOException | RuntimeException e) {
+            return entry + FIELD_SEP + "-"; // missing, or being modified
+        }
+    }
+
+    private List<String> readStamps() {
+        Path file = externalDir.resolve(STAMPS_FILE);
+        if (!Files.exists(file)) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(file);
+        } catch (IOException e) {
+            debug("Failed to read " + file + ": " + e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void writeStamps() throws IOException {
+        Files.createDirectories(externalDir);
+        writeLines(externalDir.resolve(STAMPS_FILE), stamps);
+    }
+
+    private static Path builtMarker(Path classPath) {
+        return Paths.get(System.getProperty("user.home"),
+            ".incjc-built-" + DigestUtils.md5Hex(classPath.toAbsolutePath().toString()));
+    }
+
+    // should be called before a build modifies its classpath directory, so that dependents walk it till it succeeds
+    public static void invalidateBuilt(Path classPath) {
+        Path marker = builtMarker(classPath);
+        try {
+            Files.deleteIfExists(marker);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + marker, e);
+        }
+    }
+
+    // a marker left by the previous build still stands for the contents, unless invalidated since
+    public static void markBuilt(Path classPath) {
+        Path marker = builtMarker(classPath);
+        if (Files.exists(marker)) {
+            return;
+        }
+        try {
+            writeLines(marker, Collections.singletonList(UUID.randomUUID().toString()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + marker, e);
+        }
+    }
+
+    private static void writeLines(Path file, List<String> lines) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (PrintWriter w = new PrintWriter(tmpFile.toFile())) {
+            lines.forEach(w::println);
+        }
+        try {
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Finds class files in classpath entries, first one wins; jars are opened on first use
+    private class Lookup implements AutoCloseable {
+        private final Map<Path, ZipFile> jars = new HashMap<>();
+
+        @Nullable
+        byte[] find(String cls) {
+            String name = classFileName(cls);
+            for (Path entry : entries) {
+                try {
+                    if (Files.isDirectory(entry)) {
+                        Path file = entry.resolve(name);
+                        if (Files.isRegularFile(file)) {
+                            return Files.readAllBytes(file);
+                        }
+                    } else if (Files.isRegularFile(entry)) {
+                        ZipFile jar = jars.get(entry);
+                        if (jar == null) {
+                            jar = new ZipFile(entry.toFile());
+                            jars.put(entry, jar);
+                        }
+                        ZipEntry zipEntry = jar.getEntry(name);
+                        if (zipEntry != null) {
+                            try (InputStream in = jar.getInputStream(zipEntry)) {
+                                return in.readAllBytes();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read " + name + " from classpath entry " + entry, e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            jars.values().forEach(jar -> {
+                try {
+                    jar.close();
+                } catch (IOException e) {
+                    debug("Failed to close " + jar.getName() + ": " + e);
+                }
+            });
+        }
+    }
+}
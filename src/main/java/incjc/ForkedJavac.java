@@ -0,0 +1,88 @@
+package incjc;
+
+import com.google.common.collect.Lists;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+import static incjc.ProcHelpers.getJdkExecutable;
+import static incjc.ProcHelpers.inputStreamPump;
+
+public class ForkedJavac implements Javac {
+
+    @Override
+    public boolean compile(Collection<String> sources, String classpath, String dstDir, @Nullable OutputStream output,
+        @Nullable HiddenClasses hidden, @Nullable AnnotationProcessing.Round processing)
+    {
+        if (hidden != null) {
+            throw new IllegalArgumentException("Hiding classes is not supported by external javac");
+        }
+        // javac finds processors on the classpath by itself; generated sources go to the directory of the round
+        String sourceOutput = processing != null ? processing.sourceOutput.toString() : null;
+        if (output == null) {
+            // output is written to System.out / System.err by the calling thread, not pump threads, as those may be
+            // redirected per thread (see Modules)
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            try {
+                return compile(sources, classpath, dstDir, sourceOutput, out, err);
+            } finally {
+                System.out.print(out);
+                System.out.flush();
+                System.err.print(err);
+                System.err.flush();
+            }
+        }
+        OutputStream synchronizedOutput = new OutputStream() {
+            @Override
+            public synchronized void write(int b) throws IOException {
+                output.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+            }
+        };
+        return compile(sources, classpath, dstDir, sourceOutput, synchronizedOutput, synchronizedOutput);
+    }
+
+    @Override
+    public boolean canHideClasses() {
+        return false;
+    }
+
+    @Override
+    public boolean canTrackGeneratedFiles() {
+        return false;
+    }
+
+    private boolean compile(Collection<String> sources, String classpath, String dstDir, @Nullable String sourceOutput,
+        OutputStream out, OutputStream err)
+    {
+        try {
+            ArrayList<String> cmd = Lists.newArrayList(getJdkExecutable("javac"), "-cp", classpath, "-d", dstDir);
+            if (sourceOutput != null) {
+                cmd.add("-s");
+                cmd.add(sourceOutput);
+            }
+            cmd.addAll(sources);
+            debug(String.join(" ", cmd));
+            Process p = Runtime.getRuntime().exec(cmd.toArray(new String[]{}));
+            Thread inputPump = inputStreamPump(p.getInputStream(), out);
+            Thread errorPump = inputStreamPump(p.getErrorStream(), err);
+            inputPump.start();
+            errorPump.start();
+            int retval = p.waitFor();
+            inputPump.join();
+            errorPump.join();
+            return retval == 0;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
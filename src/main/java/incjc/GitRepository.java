@@ -0,0 +1,329 @@
+package incjc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Reads git repository files directly, without running git: HEAD (with loose and packed refs) and the index, which
+ * holds blob ids of tracked files together with their size and modification time, as of the moment git has last seen
+ * them. Index versions 2 to 4 are supported, except for split and sparse indexes; repositories using SHA-256 object
+ * format are not supported.
+ */
+public class GitRepository {
+
+    private static final String GIT_DIR = ".git";
+    private static final String GITDIR_PREFIX = "gitdir:";
+    private static final String REF_PREFIX = "ref:";
+    private static final int OBJECT_ID_SIZE = 20;
+
+    private static final int INDEX_SIGNATURE = 0x44495243;     // "DIRC"
+    private static final int ASSUME_VALID_FLAG = 0x8000;
+    private static final int EXTENDED_FLAG = 0x4000;
+    private static final int STAGE_MASK = 0x3000;
+    private static final int NAME_LENGTH_MASK = 0xfff;
+    private static final int SKIP_WORKTREE_FLAG = 0x4000;       // of extended flags
+    private static final int INTENT_TO_ADD_FLAG = 0x2000;
+    private static final int GITLINK_MODE = 0160000;
+    private static final int DIRECTORY_MODE = 040000;           // sparse index directory entry
+    private static final Pattern SHA256_FORMAT =
+        Pattern.compile("(?im)^\\s*objectformat\\s*=\\s*sha256\\s*$");
+
+    public final Path workTree;
+    private final Path gitDir;
+    private final Path commonDir;   // differs from gitDir for linked worktrees
+
+    private GitRepository(Path workTree, Path gitDir, Path commonDir) {
+        this.workTree = workTree;
+        this.gitDir = gitDir;
+        this.commonDir = commonDir;
+    }
+
+    // repository, which work tree contains directory given, if any
+    @Nullable
+    public static GitRepository find(Path dir) {
+        for (Path workTree = dir.toAbsolutePath().normalize(); workTree != null; workTree = workTree.getParent()) {
+            Path git = workTree.resolve(GIT_DIR);
+            try {
+                Path gitDir;
+                if (Files.isDirectory(git)) {
+                    gitDir = git;
+                } else if (Files.isRegularFile(git)) {
+                    // linked worktree or submodule
+                    String content = new String(Files.readAllBytes(git), StandardCharsets.UTF_8).trim();
+                    if (!content.startsWith(GITDIR_PREFIX)) {
+                        return null;
+                    }
+                    gitDir = workTree.resolve(content.substring(GITDIR_PREFIX.length()).trim()).normalize();
+                } else {
+                    continue;
+                }
+                Path commonDirFile = gitDir.resolve("commondir");
+                Path commonDir = Files.exists(commonDirFile)
+                    ? gitDir.resolve(new String(Files.readAllBytes(commonDirFile), StandardCharsets.UTF_8).trim())
+                        .normalize()
+                    : gitDir;
+                return new GitRepository(workTree, gitDir, commonDir);
+            } catch (IOException e) {
+                debug("Failed to read " + git + ": " + e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public boolean usesSha256() {
+        Path config = commonDir.resolve("config");
+        try {
+            return Files.exists(config)
+                && SHA256_FORMAT.matcher(new String(Files.readAllBytes(config), StandardCharsets.UTF_8)).find();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + config, e);
+        }
+    }
+
+    // commit id HEAD points to, null for a branch without commits yet
+    @Nullable
+    public String head() {
+        return resolveRef("HEAD");
+    }
+
+    // symbolic refs are followed; refs/... names are looked up as loose refs first, then in packed-refs
+    @Nullable
+    String resolveRef(String name) {
+        for (int depth = 0; depth < 10; depth++) {
+            String value = readRef(name);
+            if (value == null) {
+                return null;
+            }
+            if (!value.startsWith(REF_PREFIX)) {
+                return value;
+            }
+            name = value.substring(REF_PREFIX.length()).trim();
+        }
+        throw new RuntimeException("Too deeply nested symbolic ref " + name);
+    }
+
+    @Nullable
+    private String readRef(String name) {
+        try {
+            // HEAD and other pseudo-refs are per worktree, refs/... are shared (except for a few special ones)
+            for (Path dir : Arrays.asList(gitDir, commonDir)) {
+                Path file = dir.resolve(name);
+                if (Files.isRegularFile(file)) {
+                    return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+                }
+            }
+            Path packedRefs = commonDir.resolve("packed-refs");
+            if (Files.exists(packedRefs)) {
+                for (String line : Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+                    if (line.endsWith(" " + name) && !line.startsWith("#") && !line.startsWith("^")) {
+                        return line.substring(0, line.indexOf(' '));
+                    }
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read ref " + name + " of " + gitDir, e);
+        }
+    }
+
+    public static class IndexEntry {
+        public final String path;       // relative to work tree, '/'-separated
+        public final String blobId;
+        public final long mtimeNanos;
+        public final long size;         // lower 32 bits of file size
+        public final int stage;
+        // git does not check the file in the work tree (assume-valid, skip-worktree), or it is not added yet
+        public final boolean unchecked;
+
+        IndexEntry(String path, String blobId, long mtimeNanos, long size, int stage, boolean unchecked) {
+            this.path = path;
+            this.blobId = blobId;
+            this.mtimeNanos = mtimeNanos;
+            this.size = size;
+            this.stage = stage;
+            this.unchecked = unchecked;
+        }
+
+        // Same check as git does: mtime and size the same as in the index mean the file has not changed since git
+        // has seen it, unless it was modified within the same timestamp granularity as the index was written
+        public boolean isClean(FileTime mtime, long size, Index index) {
+            long nanos = mtime.to(TimeUnit.NANOSECONDS);
+            boolean sameMtime = nanos == mtimeNanos
+                || mtimeNanos % 1_000_000_000 == 0 && nanos / 1_000_000_000 == mtimeNanos / 1_000_000_000;
+            return !unchecked && stage == 0 && sameMtime && (size & 0xffffffffL) == this.size
+                && mtimeNanos < index.mtimeNanos;
+        }
+    }
+
+    public static class Index {
+        public final Map<String, IndexEntry> entries;   // stage 0 entries, or the first stage of conflicting ones
+        public final boolean hasConflicts;
+        final long mtimeNanos;
+
+        Index(Map<String, IndexEntry> entries, boolean hasConflicts, long mtimeNanos) {
+            this.entries = entries;
+            this.hasConflicts = hasConflicts;
+            this.mtimeNanos = mtimeNanos;
+        }
+    }
+
+    // null if there is no index (e.g. in a bare repository) or it is not supported
+    @Nullable
+    public Index readIndex() {
+        Path file = gitDir.resolve("index");
+        byte[] bytes;
+        long mtimeNanos;
+        try {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            mtimeNanos = Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+            bytes = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+        try {
+            return parseIndex(bytes, mtimeNanos);
+        } catch (RuntimeException e) {
+            debug("Failed to parse " + file + ": " + e);
+            return null;
+        }
+    }
+
+    @Nullable
+    static Index parseIndex(byte[] bytes, long mtimeNanos) {
+        int contentSize = bytes.length - OBJECT_ID_SIZE;
+        MessageDigest sha1 = DigestUtils.getSha1Digest();
+        sha1.update(bytes, 0, contentSize);
+        if (!Arrays.equals(sha1.digest(), Arrays.copyOfRange(bytes, contentSize, bytes.length))) {
+            debug("Index checksum mismatch");
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes, 0, contentSize);
+        if (buf.getInt() != INDEX_SIGNATURE) {
+            return null;
+        }
+        int version = buf.getInt();
+        if (version < 2 || version > 4) {
+            debug("Unsupported index version " + version);
+            return null;
+        }
+        int entryCount = buf.getInt();
+        Map<String, IndexEntry> entries = new HashMap<>(entryCount * 2);
+        boolean hasConflicts = false;
+        byte[] prevName = new byte[0];
+        for (int i = 0; i < entryCount; i++) {
+            int entryStart = buf.position();
+            buf.position(entryStart + 8);   // ctime
+            long mtimeSeconds = Integer.toUnsignedLong(buf.getInt());
+            long mtimeNanosPart = Integer.toUnsignedLong(buf.getInt());
+            buf.position(buf.position() + 8);   // dev, ino
+            int mode = buf.getInt();
+            buf.position(buf.position() + 8);   // uid, gid
+            long size = Integer.toUnsignedLong(buf.getInt());
+            byte[] id = new byte[OBJECT_ID_SIZE];
+            buf.get(id);
+            int flags = Short.toUnsignedInt(buf.getShort());
+            int extendedFlags = (flags & EXTENDED_FLAG) != 0 ? Short.toUnsignedInt(buf.getShort()) : 0;
+            byte[] name;
+            if (version == 4) {
+                // name is prefix compressed: length of previous name part to drop, then the rest of the name
+                int strip = (int) readOffsetVarint(buf);
+                int end = indexOf(bytes, (byte) 0, buf.position());
+                int keep = prevName.length - strip;
+                name = Arrays.copyOf(prevName, keep + end - buf.position());
+                System.arraycopy(bytes, buf.position(), name, keep, end - buf.position());
+                buf.position(end + 1);
+            } else {
+                int nameLength = flags & NAME_LENGTH_MASK;
+                int end = nameLength < NAME_LENGTH_MASK ? buf.position() + nameLength
+                    : indexOf(bytes, (byte) 0, buf.position());
+                name = Arrays.copyOfRange(bytes, buf.position(), end);
+                // entries are padded with 1 to 8 NULs, to a multiple of 8 bytes
+                buf.position(entryStart + ((end - entryStart + 8) & ~7));
+            }
+            prevName = name;
+
+            if ((mode & 0170000) == DIRECTORY_MODE) {
+                debug("Sparse index is not supported");
+                return null;
+            }
+            if ((mode & 0170000) == GITLINK_MODE) {
+                continue;
+            }
+            int stage = (flags & STAGE_MASK) >> 12;
+            hasConflicts |= stage != 0;
+            String path = new String(name, StandardCharsets.UTF_8);
+            boolean unchecked = (flags & ASSUME_VALID_FLAG) != 0
+                || (extendedFlags & (SKIP_WORKTREE_FLAG | INTENT_TO_ADD_FLAG)) != 0;
+            entries.putIfAbsent(path, new IndexEntry(path, Hex.encodeHexString(id),
+                mtimeSeconds * 1_000_000_000 + mtimeNanosPart, size, stage, unchecked));
+        }
+
+        // extensions: 4-byte signature, 4-byte size, data
+        while (buf.remaining() >= 8) {
+            String signature = new String(bytes, buf.position(), 4, StandardCharsets.US_ASCII);
+            buf.position(buf.position() + 4);
+            int size = buf.getInt();
+            if (signature.equals("link") || signature.equals("sdir")) {
+                debug("Index extension " + signature + " is not supported");
+                return null;
+            }
+            buf.position(buf.position() + size);
+        }
+        return new Index(entries, hasConflicts, mtimeNanos);
+    }
+
+    // "offset" variable-length integer of git: each continuation adds one, so that encodings are unique
+    private static long readOffsetVarint(ByteBuffer buf) {
+        int c = Byte.toUnsignedInt(buf.get());
+        long value = c & 0x7f;
+        while ((c & 0x80) != 0) {
+            c = Byte.toUnsignedInt(buf.get());
+            value = ((value + 1) << 7) | (c & 0x7f);
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Unterminated name in index");
+    }
+
+    // blob id of contents of the size given, same as git hash-object computes
+    public static String blobId(InputStream content, long size) throws IOException {
+        MessageDigest sha1 = DigestUtils.getSha1Digest();
+        sha1.update(("blob " + size + "\0").getBytes(StandardCharsets.US_ASCII));
+        return Hex.encodeHexString(DigestUtils.updateDigest(sha1, content).digest());
+    }
+
+    // path relative to the work tree, as in the index
+    public String relativePath(Path file) {
+        List<String> parts = new ArrayList<>();
+        workTree.relativize(file.toAbsolutePath().normalize()).forEach(part -> parts.add(part.toString()));
+        return String.join("/", parts);
+    }
+}
@@ -0,0 +1,170 @@
+package incjc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Finds changed, new and deleted sources using git index (INCJC_GIT=1). Source hashes are git blob ids (see
+ * SourceState.hash), so that a source changed since the last build (e.g. by checkout of another branch) is only hashed
+ * if git itself does not know its contents: either it has been modified since git has seen it, or it is not tracked at
+ * all. Sources themselves are the ones found by SourceTree, including untracked ones.
+ *
+ * The commit built is kept in git.txt of metainfo directory.
+ *
+ * Changed sources are hashed as usual when the index is not supported or has conflicts.
+ */
+public class GitSources {
+
+    private static final String STATE_FILE = "git.txt";
+    private static final String FIELD_SEP = "->";
+    private static final String COMMIT_KEY = "commit";
+    private static final String NONE = "-";
+
+    private final GitRepository repo;
+    private final String sourceDir;
+
+    private GitSources(GitRepository repo, String sourceDir) {
+        this.repo = repo;
+        this.sourceDir = sourceDir;
+    }
+
+    public static class Changes {
+        public final Map<String, SourceState> updatedSourceStates;
+        public final Set<String> deletedSources;
+
+        Changes(Map<String, SourceState> updatedSourceStates, Set<String> deletedSources) {
+            this.updatedSourceStates = updatedSourceStates;
+            this.deletedSources = deletedSources;
+        }
+    }
+
+    // null unless INCJC_GIT=1 and the source directory is within a git work tree
+    @Nullable
+    public static GitSources ifEnabled(String sourceDir) {
+        if (!Debug.TRUE_VALUES.contains(System.getenv("INCJC_GIT"))) {
+            return null;
+        }
+        GitRepository repo = GitRepository.find(Paths.get(sourceDir));
+        if (repo == null) {
+            debug("No git repository found for " + sourceDir);
+            return null;
+        }
+        if (repo.usesSha256()) {
+            debug("Git repository " + repo.workTree + " uses SHA-256 object format, which is not supported");
+            return null;
+        }
+        return new GitSources(repo, sourceDir);
+    }
+
+    // null if changes cannot be found using git index, so that changed sources should be hashed instead
+    @Nullable
+    public Changes findChanges(MetaInfo metaInfo, Set<String> sources) {
+        GitRepository.Index index = repo.readIndex();
+        if (index == null) {
+            return null;
+        }
+
+        String prefix = repo.relativePath(Paths.get(sourceDir));
+        prefix = prefix.isEmpty() ? "" : prefix + "/";
+        Map<String, GitRepository.IndexEntry> tracked = new HashMap<>();
+        for (GitRepository.IndexEntry entry : index.entries.values()) {
+            if (entry.path.startsWith(prefix) && entry.path.endsWith(".java")) {
+                if (entry.stage != 0) {
+                    debug("Git index has conflicts in " + entry.path);
+                    return null;
+                }
+                tracked.put(sourceDir + File.separator +
+                    entry.path.substring(prefix.length()).replace("/", File.separator), entry);
+            }
+        }
+
+        Map<String, SourceState> updatedSourceStates = new ConcurrentHashMap<>();
+        AtomicLong hashed = new AtomicLong();
+        sources.parallelStream().forEach(src -> {
+            BasicFileAttributes attrs = attributesIfExists(Paths.get(src));
+            if (attrs == null) {
+                return; // deleted since scanned, the build will fail as usual
+            }
+            SourceState oldState = metaInfo.sources.get(src);
+            if (oldState != null && oldState.sameStat(attrs)) {
+                return;
+            }
+            GitRepository.IndexEntry entry = tracked.get(src);
+            if (entry != null && entry.isClean(attrs.lastModifiedTime(), attrs.size(), index)) {
+                updatedSourceStates.put(src, SourceState.of(entry.blobId, attrs));
+            } else {
+                updatedSourceStates.put(src, SourceState.of(Paths.get(src), attrs));
+                hashed.incrementAndGet();
+            }
+        });
+        Set<String> deletedSources = metaInfo.sources.keySet().stream()
+            .filter(src -> !sources.contains(src))
+            .collect(Collectors.toSet());
+        BuildReport.count("filesHashed", hashed.get());
+        BuildReport.count("filesFromGitIndex", updatedSourceStates.size() - hashed.get());
+        return new Changes(updatedSourceStates, deletedSources);
+    }
+
+    // should be called once a build succeeds
+    public void save(String metaDir) {
+        Path file = Paths.get(metaDir, STATE_FILE);
+        Path tmpFile = Paths.get(metaDir, STATE_FILE + ".tmp");
+        String commit = repo.head();
+        try {
+            try (PrintWriter w = new PrintWriter(tmpFile.toFile())) {
+                w.println(COMMIT_KEY + FIELD_SEP + (commit != null ? commit : NONE));
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save git state to " + file, e);
+        }
+    }
+
+    // commit HEAD pointed to at the last successful build, if known
+    @Nullable
+    public static String lastBuiltCommit(String metaDir) {
+        Path file = Paths.get(metaDir, STATE_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Stream<String> lines = Files.lines(file)) {
+            return lines.filter(line -> line.startsWith(COMMIT_KEY + FIELD_SEP))
+                .map(line -> line.substring(COMMIT_KEY.length() + FIELD_SEP.length()))
+                .filter(commit -> !commit.equals(NONE))
+                .findFirst()
+                .orElse(null);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+    }
+
+    @Nullable
+    private static BasicFileAttributes attributesIfExists(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package incjc;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+// Classes of a classpath directory, which should not be visible to compiler (e.g. ones being recompiled)
+public class HiddenClasses {
+    public final Path dir;
+    public final Set<String> classNames;
+
+    public HiddenClasses(Path dir, Set<String> classNames) {
+        this.dir = dir;
+        this.classNames = classNames;
+    }
+
+    public boolean contains(Path file, String className) {
+        return classNames.contains(className) && file.startsWith(dir);
+    }
+}
@@ -0,0 +1,181 @@
+package incjc;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static incjc.Debug.debug;
+
+/*
+ * Classes affected by changes of sources, found using dependency graph of the last build without compiling anything:
+ * classes of changed, new and deleted sources, and all the classes depending on them, directly or transitively.
+ * Affected tests are the top-level classes, which simple name matches INCJC_TEST_PATTERN (Surefire naming conventions
+ * by default) and, if INCJC_TEST_ROOT directory is set, which sources are within it; tests deleted are not included.
+ *
+ * Changes are either source paths given, sources changed in a git revision range (or since a revision, if a single one
+ * is given; in git diff terms), or sources changed since the last build, if neither is given:
+ *
+ *   incjc --affected [--tests] [--explain] <sourcepath> [<source>... | <revision range>]
+ *
+ * Affected classes (or tests only) are printed one per line; with --explain, each is followed by the classes it is
+ * affected through, up to a class of changed source: "p.FooTest <- p.Foo <- p.Bar".
+ */
+public class Impact {
+
+    static final String TESTS_OPTION = "--tests";
+    static final String EXPLAIN_OPTION = "--explain";
+
+    private static final Pattern TEST_PATTERN = Pattern.compile(System.getenv("INCJC_TEST_PATTERN") != null
+        ? System.getenv("INCJC_TEST_PATTERN") : "Test.*|.*Tests?|.*TestCase");
+
+    // affected class -> class it depends on, which it is affected through; classes of changed sources -> themselves
+    private final Map<String, String> reachedFrom;
+    // affected test -> affected class, which is the test itself or its nested class
+    private final Map<String, String> tests;
+
+    private Impact(Map<String, String> reachedFrom, Map<String, String> tests) {
+        this.reachedFrom = reachedFrom;
+        this.tests = tests;
+    }
+
+    public Set<String> classes() {
+        return reachedFrom.keySet();
+    }
+
+    public Set<String> tests() {
+        return tests.keySet();
+    }
+
+    // affected class or test given, followed by the classes it is affected through, up to a class of changed source
+    public List<String> explain(String cls) {
+        List<String> path = new ArrayList<>();
+        String current = tests.getOrDefault(cls, cls);
+        if (!current.equals(cls)) {
+            path.add(cls);
+        }
+        while (current != null && !path.contains(current)) {
+            path.add(current);
+            current = reachedFrom.get(current);
+        }
+        return path;
+    }
+
+    // changes are source paths or a git revision range, see above; empty if sources changed since the last build
+    public static Impact of(String sourceDir, List<String> changes) {
+        String absSourceDir = Paths.get(sourceDir).toAbsolutePath().toString();
+        String metaPath = IncJC.metaInfoPathForSourceDir(absSourceDir);
+        if (!MetaInfo.existsIn(metaPath)) {
+            throw new RuntimeException("No meta information found in " + metaPath + ", sources should be built first");
+        }
+        MetaInfo metaInfo = MetaInfo.load(metaPath);
+        Set<String> changedSources;
+        if (changes.isEmpty()) {
+            changedSources = sourcesChangedSinceLastBuild(absSourceDir, metaInfo);
+        } else if (changes.size() == 1 && !changes.get(0).endsWith(".java")) {
+            changedSources = sourcesChangedInGit(absSourceDir, changes.get(0));
+        } else {
+            changedSources = changes.stream()
+                .map(src -> Paths.get(src).toAbsolutePath().normalize().toString())
+                .collect(Collectors.toSet());
+        }
+        debug("Changed sources: " + System.lineSeparator() + String.join(System.lineSeparator(), changedSources));
+        return of(metaInfo, absSourceDir, changedSources);
+    }
+
+    public static Impact of(MetaInfo metaInfo, String sourceDir, Set<String> changedSources) {
+        // classes of new sources are not known before they are compiled, so their names are derived from source paths
+        Map<String, String> newClasses = new HashMap<>();
+        for (String src : changedSources) {
+            if (!metaInfo.sources.containsKey(src) && src.startsWith(sourceDir + File.separator)) {
+                String relPath = src.substring(sourceDir.length() + 1, src.length() - ".java".length());
+                newClasses.put(relPath.replace(File.separatorChar, '.'), src);
+            }
+        }
+        Set<String> changedClasses = new HashSet<>(metaInfo.classesBySources(changedSources));
+        changedClasses.addAll(newClasses.keySet());
+        Map<String, String> reachedFrom = metaInfo.deps.reachableFromWithPredecessors(changedClasses);
+
+        String testRoot = System.getenv("INCJC_TEST_ROOT");
+        String testRootPrefix = testRoot != null ? Paths.get(testRoot).toAbsolutePath().normalize() + File.separator
+            : null;
+        Map<String, String> tests = new HashMap<>();
+        for (String cls : reachedFrom.keySet()) {
+            String src = metaInfo.classes.getOrDefault(cls, newClasses.get(cls));
+            if (src == null || (testRootPrefix != null && !src.startsWith(testRootPrefix))
+                || !Files.exists(Paths.get(src))) {
+                continue;
+            }
+            String topLevelClass = topLevelClass(cls);
+            if (TEST_PATTERN.matcher(simpleName(topLevelClass)).matches()) {
+                tests.merge(topLevelClass, cls, (a, b) -> a.equals(topLevelClass) ? a : b);
+            }
+        }
+        return new Impact(reachedFrom, tests);
+    }
+
+    static Set<String> sourcesChangedSinceLastBuild(String sourceDir, MetaInfo metaInfo) {
+        Set<String> sources = SourceTree.scan(sourceDir, metaInfo.dir).sources();
+        Set<String> result = new HashSet<>(IncJC.findChangedAndNewSources(
+            IncJC.findUpdatedSourceStates(sources, metaInfo.sources), metaInfo.sources).keySet());
+        metaInfo.sources.keySet().stream().filter(src -> !sources.contains(src)).forEach(result::add);
+        return result;
+    }
+
+    // renamed sources are reported as deleted and new ones
+    static Set<String> sourcesChangedInGit(String sourceDir, String revisions) {
+        if (revisions.startsWith("-")) {
+            throw new RuntimeException("Invalid git revision range: " + revisions);
+        }
+        String output = ProcHelpers.getProcessOutput(new String[] {
+            "git", "-C", sourceDir, "diff", "--name-only", "-z", "--no-renames", "--relative", revisions, "--"});
+        return Arrays.stream(output.split("\0"))
+            .filter(path -> path.endsWith(".java"))
+            .map(path -> Paths.get(sourceDir, path).normalize().toString())
+            .collect(Collectors.toSet());
+    }
+
+    // returns exit code, same as IncJC.run
+    public static int run(String[] args) {
+        boolean testsOnly = false;
+        boolean explain = false;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i++) {
+            if (TESTS_OPTION.equals(args[i])) {
+                testsOnly = true;
+            } else if (EXPLAIN_OPTION.equals(args[i])) {
+                explain = true;
+            } else {
+                System.err.println(IncJC.USAGE);
+                return IncJC.RETVAL_UNEXPECTED_FAILURE;
+            }
+        }
+        if (i == args.length) {
+            System.err.println(IncJC.USAGE);
+            return IncJC.RETVAL_UNEXPECTED_FAILURE;
+        }
+        Impact impact = of(args[i], Arrays.asList(args).subList(i + 1, args.length));
+        for (String cls : new TreeSet<>(testsOnly ? impact.tests() : impact.classes())) {
+            System.out.println(explain ? String.join(" <- ", impact.explain(cls)) : cls);
+        }
+        return 0;
+    }
+
+    private static String topLevelClass(String cls) {
+        int nested = cls.indexOf('$', cls.lastIndexOf('.') + 1);
+        return nested == -1 ? cls : cls.substring(0, nested);
+    }
+
+    private static String simpleName(String cls) {
+        return cls.substring(cls.lastIndexOf('.') + 1);
+    }
+}
@@ -0,0 +1,214 @@
+package incjc;
+
+import com.google.common.collect.Iterables;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Runs system Java compiler in-process. Standard file managers are reused across compilations (waves, partitions, and
+ * builds of the daemon), since opening classpath jars and indexing their packages takes a while: an idle file
+ * manager is kept per classpath and flushed once a compilation is done instead of being closed. Jars are kept open by
+ * file managers, so idle ones are closed once size or mtime of some classpath jar changes.
+ */
+public class InProcessJavac implements Javac {
+
+    private static final int MAX_IDLE_CLASSPATHS = 16;
+
+    private final JavaCompiler compiler;
+
+    // classpath -> idle file managers and the classpath jar stamps they have been opened with
+    private final Map<String, FileManagers> idle = new LinkedHashMap<String, FileManagers>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileManagers> eldest) {
+            if (size() <= MAX_IDLE_CLASSPATHS) {
+                return false;
+            }
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    public InProcessJavac(JavaCompiler compiler) {
+        this.compiler = compiler;
+    }
+
+    @Override
+    public boolean compile(Collection<String> sources, String classpath, String dstDir, @Nullable OutputStream output,
+        @Nullable HiddenClasses hidden, @Nullable AnnotationProcessing.Round processing)
+    {
+        // null writer: diagnostics go to System.err, same as for forked javac
+        PrintWriter writer = output != null
+            ? new PrintWriter(new OutputStreamWriter(output, Charset.defaultCharset()))
+            : null;
+        debug("javac (in-process) -cp " + classpath + " -d " + dstDir + " " + String.join(" ", sources));
+        System.out.flush();
+        List<File> entries = Stream.of(classpath.split(File.pathSeparator))
+            .filter(entry -> !entry.isEmpty())
+            .map(File::new)
+            .collect(Collectors.toList());
+        String jarStamps = jarStamps(entries);
+        StandardJavaFileManager fileManager = acquire(classpath, jarStamps);
+        boolean reusable = false;
+        try {
+            // locations are set anew, so that packages of classpath directories are listed anew as well
+            fileManager.setLocation(StandardLocation.CLASS_PATH, entries);
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(new File(dstDir)));
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, processing != null
+                ? Collections.singletonList(processing.sourceOutput.toFile())
+                : null);
+            JavaFileManager taskFileManager = hidden != null ? new HidingFileManager(fileManager, hidden) : fileManager;
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromStrings(sources);
+            JavaCompiler.CompilationTask task = compiler.getTask(writer, taskFileManager, null, null, null, units);
+            if (processing != null) {
+                // processors given replace the ones compiler would find on the classpath
+                task.setProcessors(processing.processors());
+            }
+            boolean success = task.call();
+            // drops contents of sources read, so that they are read anew next time
+            fileManager.flush();
+            reusable = true;
+            return success;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to set up java file manager", e);
+        } finally {
+            if (reusable) {
+                release(classpath, jarStamps, fileManager);
+            } else {
+                closeQuietly(fileManager);
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+            System.err.flush();
+        }
+    }
+
+    private StandardJavaFileManager acquire(String classpath, String jarStamps) {
+        synchronized (idle) {
+            FileManagers managers = idle.get(classpath);
+            if (managers != null && managers.jarStamps.equals(jarStamps) && !managers.idle.isEmpty()) {
+                return managers.idle.pop();
+            }
+        }
+        return compiler.getStandardFileManager(null, null, null);
+    }
+
+    private void release(String classpath, String jarStamps, StandardJavaFileManager fileManager) {
+        synchronized (idle) {
+            FileManagers managers = idle.get(classpath);
+            if (managers == null || !managers.jarStamps.equals(jarStamps)) {
+                if (managers != null) {
+                    managers.close();
+                }
+                managers = new FileManagers(jarStamps);
+                idle.put(classpath, managers);
+            }
+            managers.idle.push(fileManager);
+        }
+    }
+
+    private static String jarStamps(List<File> entries) {
+        return entries.stream()
+            .filter(File::isFile)
+            .map(entry -> entry + ":" + entry.length() + ":" + entry.lastModified())
+            .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private static void closeQuietly(StandardJavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+            debug("Failed to close java file manager: " + e);
+        }
+    }
+
+    private static class FileManagers {
+        final String jarStamps;
+        final Deque<StandardJavaFileManager> idle = new ArrayDeque<>();
+
+        FileManagers(String jarStamps) {
+            this.jarStamps = jarStamps;
+        }
+
+        void close() {
+            idle.forEach(InProcessJavac::closeQuietly);
+            idle.clear();
+        }
+    }
+
+    @Override
+    public boolean canHideClasses() {
+        return true;
+    }
+
+    @Override
+    public boolean canTrackGeneratedFiles() {
+        return true;
+    }
+
+    // compiler looks for classes by listing classpath packages, or, rarely, by asking for a particular class
+    private static class HidingFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final HiddenClasses hidden;
+
+        HidingFileManager(StandardJavaFileManager fileManager, HiddenClasses hidden) {
+            super(fileManager);
+            this.hidden = hidden;
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+            boolean recurse) throws IOException
+        {
+            Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+            if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return files;
+            }
+            return Iterables.filter(files, file -> !isHidden(file));
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForInput(Location location, String className, JavaFileObject.Kind kind)
+            throws IOException
+        {
+            JavaFileObject file = super.getJavaFileForInput(location, className, kind);
+            return file != null && location == StandardLocation.CLASS_PATH && isHidden(file) ? null : file;
+        }
+
+        private boolean isHidden(JavaFileObject file) {
+            if (file.getKind() != JavaFileObject.Kind.CLASS) {
+                return false;
+            }
+            Path path;
+            try {
+                path = fileManager.asPath(file);
+            } catch (IllegalArgumentException e) {
+                return false; // not a file, e.g. a class from a jar
+            }
+            return hidden.contains(path, fileManager.inferBinaryName(StandardLocation.CLASS_PATH, file));
+        }
+    }
+}
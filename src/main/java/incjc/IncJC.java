@@ -1,28 +1,43 @@
 package incjc;
 
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.Nullable;
 
 import static incjc.Debug.debug;
-import static incjc.ProcHelpers.getJdkExecutable;
-import static incjc.ProcHelpers.inputStreamPump;
 
 public class IncJC {
 
@@ -31,32 +46,138 @@ public class IncJC {
     public static final int RETVAL_COMPILATION_ERROR = 1;
     public static final int RETVAL_UNEXPECTED_FAILURE = 2;
 
+    static final String DAEMON_OPTION = "--daemon";
+    static final String STOP_DAEMON_OPTION = "--stop-daemon";
+    static final String SERVE_OPTION = "--serve";
+    static final String WATCH_OPTION = "--watch";
+    static final String CACHE_STATS_OPTION = "--cache-stats";
+    static final String MODULES_OPTION = "--modules";
+    static final String AFFECTED_OPTION = "--affected";
+
+    static final String USAGE = "Usage: incjc [--daemon | --watch] <classpath> <sourcepath>" + System.lineSeparator() +
+        "       incjc --modules <descriptor>" + System.lineSeparator() +
+        "       incjc --affected [--tests] [--explain] <sourcepath> [<source>... | <git revision range>]" +
+        System.lineSeparator() +
+        "       incjc --stop-daemon" + System.lineSeparator() +
+        "       incjc --cache-stats";
+
     private static final Function<Collection<Path>, Collection<ClassFileDesc>> CLASS_FILE_EXAMINER =
-        new JdkBasedClassFileExaminer();
+        "jdk".equals(System.getenv("INCJC_EXAMINER")) ? new JdkBasedClassFileExaminer() : new NativeClassFileExaminer();
+
+    private static final Javac JAVAC = createJavac();
+
+
+    // INCJC_JAVAC_THREADS limits number of sources partitions compiled in parallel; 1 disables partitioning
+    static int javacThreads() {
+        String threadsEnv = System.getenv("INCJC_JAVAC_THREADS");
+        if (threadsEnv == null) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            int threads = Integer.parseInt(threadsEnv.trim());
+            if (threads > 0) {
+                return threads;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new RuntimeException("INCJC_JAVAC_THREADS should be a positive number, got: " + threadsEnv);
+    }
 
     public static void main(String[] args) {
+        int retval;
+        if (args.length > 0 && DAEMON_OPTION.equals(args[0])) {
+            retval = DaemonClient.compile(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length == 1 && STOP_DAEMON_OPTION.equals(args[0])) {
+            retval = DaemonClient.stop();
+        } else if (args.length == 1 && CACHE_STATS_OPTION.equals(args[0])) {
+            BuildCache.inHomeDir().printStats();
+            retval = 0;
+        } else if (args.length == 3 && WATCH_OPTION.equals(args[0])) {
+            try {
+                Watcher.watch(args[1], args[2]);
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("FAILURE: " + e.getMessage());
+                e.printStackTrace(System.err);
+                retval = RETVAL_UNEXPECTED_FAILURE;
+            }
+        } else if (args.length == 2 && MODULES_OPTION.equals(args[0])) {
+            try {
+                retval = Modules.build(args[1]);
+            } catch (RuntimeException e) {
+                System.err.println("FAILURE: " + e.getMessage());
+                e.printStackTrace(System.err);
+                retval = RETVAL_UNEXPECTED_FAILURE;
+            }
+        } else if (args.length > 1 && AFFECTED_OPTION.equals(args[0])) {
+            try {
+                retval = Impact.run(Arrays.copyOfRange(args, 1, args.length));
+            } catch (RuntimeException e) {
+                System.err.println("FAILURE: " + e.getMessage());
+                e.printStackTrace(System.err);
+                retval = RETVAL_UNEXPECTED_FAILURE;
+            }
+        } else if (args.length == 2 && SERVE_OPTION.equals(args[0])) {
+            retval = Daemon.serve(args[1]);
+        } else {
+            retval = run(args);
+        }
+        if (retval != 0) {
+            System.exit(retval);
+        }
+    }
+
+    // same as main, but returns exit code instead of exiting
+    public static int run(String[] args) {
         try {
             if (args.length != 2) {
-                System.err.println("Usage: incjc <classpath> <sourcepath>");
+                System.err.println(USAGE);
+                return RETVAL_UNEXPECTED_FAILURE;
             }
 
             String classpath = args[0];
             String sourceDir = args[1];
-            if (!compile(classpath, sourceDir)) {
-                System.exit(RETVAL_COMPILATION_ERROR);
-            }
+            return compile(classpath, sourceDir) ? 0 : RETVAL_COMPILATION_ERROR;
         } catch (RuntimeException e) {
             System.err.println("FAILURE: " + e.getMessage());
             e.printStackTrace(System.err);
-            System.exit(RETVAL_UNEXPECTED_FAILURE);
+            return RETVAL_UNEXPECTED_FAILURE;
         }
     }
 
     public static boolean compile(String classpath, String sourceDir) {
+        return compile(classpath, sourceDir, System.getenv("CLASSPATH"));
+    }
+
+    // external classpath is a list of jars / directories, e.g. outputs of other modules (see Modules)
+    public static boolean compile(String classpath, String sourceDir, @Nullable String externalClasspath) {
+        return reported(() -> compileSourceDir(classpath, sourceDir, externalClasspath));
+    }
+
+    // build is timed and counted by BuildReport, see there
+    private static boolean reported(Supplier<Boolean> build) {
+        BuildReport.begin();
+        String outcome = "failure";
+        try {
+            boolean success = build.get();
+            outcome = success ? "success" : "compilationError";
+            return success;
+        } finally {
+            BuildReport.end(outcome);
+        }
+    }
+
+    static boolean compileSourceDir(String classpath, String sourceDir, @Nullable String externalClasspath) {
         String absClasspath = Paths.get(classpath).toAbsolutePath().toString();
         String absSourceDir = Paths.get(sourceDir).toAbsolutePath().toString();
 
-        Set<String> allSources = findAllSources(absSourceDir);
+        String metaPath = metaInfoPathForSourceDir(absSourceDir);
+
+        // only directories changed since the last build are listed, see SourceTree
+        SourceTree tree = BuildReport.timed("scan", () -> SourceTree.scan(absSourceDir, metaPath));
+        Set<String> allSources = tree.sources();
+        BuildReport.count("sourcesFound", allSources.size());
         if (allSources.isEmpty()) {
             System.out.println("No sources found.");
             return true;
@@ -64,109 +185,583 @@ public class IncJC {
             debug("All sources: " + System.lineSeparator() + String.join(System.lineSeparator(), allSources));
         }
 
-        String metaPath = metaInfoPathForSourceDir(absSourceDir);
-
+        GitSources git = GitSources.ifEnabled(absSourceDir);
         if (!MetaInfo.existsIn(metaPath)) {
             System.out.println("No meta information found in " + metaPath + ". Recompiling all sources.");
-            return compileFully(absSourceDir, allSources, absClasspath, metaPath);
+            BuildReport.mode("full");
+            return savingScanState(tree, git, metaPath, absClasspath,
+                compileFully(absSourceDir, allSources, absClasspath, externalClasspath, metaPath));
+        }
+
+        // git index tells which sources have changed without hashing them, see GitSources
+        if (git != null) {
+            MetaInfo metaInfo = BuildReport.timed("loadMetaInfo", () -> MetaInfo.load(metaPath));
+            GitSources.Changes changes = BuildReport.timed("gitStatus", () -> git.findChanges(metaInfo, allSources));
+            if (changes != null) {
+                BuildReport.mode("git");
+                return savingScanState(tree, git, metaPath, absClasspath, compileIncrementally(absSourceDir,
+                    absClasspath, externalClasspath, metaInfo, changes.updatedSourceStates, changes.deletedSources));
+            }
+            debug("Changes cannot be found using git index, hashing changed sources");
         }
-        return compileIncrementally(absSourceDir, allSources, absClasspath, metaPath);
+        BuildReport.mode("incremental");
+        return savingScanState(tree, git, metaPath, absClasspath,
+            compileIncrementally(absSourceDir, allSources, absClasspath, externalClasspath, metaPath));
     }
 
-    private static boolean compileFully(String sourceDir, Set<String> sources, String classpath, String metaPath) {
-        try {
-            Path classPath = Paths.get(classpath);
-            if (Files.exists(classPath)) {
-                if (Files.isDirectory(classPath)) {
-                    FileUtils.cleanDirectory(classPath.toFile());
+    private static boolean savingScanState(SourceTree tree, @Nullable GitSources git, String metaPath,
+        String classpath, boolean success)
+    {
+        if (success) {
+            ExternalClasspath.markBuilt(Paths.get(classpath));
+            tree.save(metaPath);
+            if (git != null) {
+                git.save(metaPath);
+            }
+        }
+        return success;
+    }
+
+    private static boolean compileFully(String sourceDir, Set<String> sources, String classpath,
+        @Nullable String externalClasspath, String metaPath)
+    {
+        BuildReport.timed("clean", () -> {
+            try {
+                Path classPath = Paths.get(classpath);
+                ExternalClasspath.invalidateBuilt(classPath);
+                if (Files.exists(classPath)) {
+                    if (Files.isDirectory(classPath)) {
+                        FileUtils.cleanDirectory(classPath.toFile());
+                    } else {
+                        throw new RuntimeException("Classpath provided is not a directory: " + classPath);
+                    }
                 } else {
-                    throw new RuntimeException("Classpath provided is not a directory: " + classPath);
+                    Files.createDirectories(classPath);
                 }
-            } else {
-                Files.createDirectories(classPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to clean directory " + classpath);
             }
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to clean directory " + classpath);
-        }
+        });
 
-        if (javac(sources, classpath, classpath)) {
+        BuildReport.count("sourcesRecompiled", sources.size());
+        BuildReport.count("waves", 1);
+        try (AnnotationProcessing processing = AnnotationProcessing.of(metaPath, externalClasspath, true)) {
+            AnnotationProcessing.Round round = processing.isEmpty() ? null
+                : processing.newRound(sources, Paths.get(classpath), Paths.get(classpath), true);
+            if (!BuildReport.timed("javac",
+                () -> javac(sources, withExternalClasspath(classpath, externalClasspath), classpath, round)))
+            {
+                return false;
+            }
             MetaInfo.createOrReset(metaPath);
             MetaInfo metaInfo = new MetaInfo(metaPath);
-            enrichMetaInfo(metaInfo, sourceDir, sources, Paths.get(classpath));
-            metaInfo.save();
+            metaInfo.addSources(BuildReport.timed("hash", () -> sources.parallelStream()
+                .collect(Collectors.toConcurrentMap(Function.identity(), src -> SourceState.of(Paths.get(src))))));
+            BuildReport.count("filesHashed", sources.size());
+            Collection<ClassFileDesc> descs = BuildReport.timed("examine",
+                () -> CLASS_FILE_EXAMINER.apply(findAllClassFiles(Paths.get(classpath))));
+            BuildReport.count("classesExamined", descs.size());
+            ExternalClasspath external = ExternalClasspath.of(metaPath, externalClasspath);
+            BuildReport.timed("updateMetaInfo", () -> {
+                processing.updateMetaInfo(metaInfo, Collections.emptySet());
+                enrichMetaInfo(metaInfo, sourceDir, descs, processing);
+                external.update(metaInfo);
+            });
+            BuildReport.timed("saveMetaInfo", metaInfo::save);
+            external.save();
+            processing.save();
+            processing.commit(Collections.emptySet());
+            OutputJar outputJar = OutputJar.ifEnabled(Paths.get(classpath), metaPath);
+            if (outputJar != null) {
+                BuildReport.timed("jar", outputJar::writeAll);
+            }
+            // classes restored from cache would miss files generated along with them
+            BuildCache buildCache = processing.isEmpty() ? BuildCache.ifEnabled() : null;
+            if (buildCache != null) {
+                BuildReport.timed("cacheStore", () -> {
+                    buildCache.store(sourceDir, Collections.singletonMap(Paths.get(classpath), descs), metaInfo,
+                        Paths.get(classpath), externalClasspath);
+                    buildCache.saveStats();
+                });
+            }
             return true;
         }
+    }
+
+    public static boolean compileIncrementally(String sourceDir, Set<String> sources, String classpath,
+        @Nullable String externalClasspath, String metaPath)
+    {
+        MetaInfo metaInfo = BuildReport.timed("loadMetaInfo", () -> MetaInfo.load(metaPath));
+        Map<String, SourceState> updatedSourceStates =
+            BuildReport.timed("hash", () -> findUpdatedSourceStates(sources, metaInfo.sources));
+        BuildReport.count("filesHashed", updatedSourceStates.size());
+        Set<String> deletedSources = Sets.difference(metaInfo.sources.keySet(), sources).immutableCopy();
+        return compileIncrementally(sourceDir, classpath, externalClasspath, metaInfo, updatedSourceStates,
+            deletedSources);
+    }
 
-        return false;
+    // Same as above, but for changed paths already known (e.g. reported by file system watcher), so that neither
+    // source tree is walked, nor other sources are checked. Path of a deleted directory stands for all its sources.
+    public static boolean compileChanges(String sourceDir, String classpath, String metaPath, Set<String> changedPaths) {
+        return reported(() -> {
+            BuildReport.mode("changes");
+            return compileChangedPaths(sourceDir, classpath, metaPath, changedPaths);
+        });
     }
 
-    public static boolean compileIncrementally(String sourceDir, Set<String> sources, String classpath, String metaPath) {
-        MetaInfo metaInfo = new MetaInfo(metaPath);
-        Map<String, String> changedAndNewSources = findChangedAndNewSources(sources, metaInfo.sources);
-        Set<String> deletedSources = Sets.difference(metaInfo.sources.keySet(), sources);
-        Set<String> changedAndNewAndDeletedSources = Sets.union(changedAndNewSources.keySet(), deletedSources);
-        Set<String> sourcesToRecompile = Sets.difference(
-            Sets.union(
-                metaInfo.affectedSources(changedAndNewAndDeletedSources),
-                changedAndNewAndDeletedSources),
+    private static boolean compileChangedPaths(String sourceDir, String classpath, String metaPath,
+        Set<String> changedPaths)
+    {
+        MetaInfo metaInfo = BuildReport.timed("loadMetaInfo", () -> MetaInfo.load(metaPath));
+        Set<String> existingSources = changedPaths.stream()
+            .filter(path -> Files.isRegularFile(Paths.get(path)))
+            .collect(Collectors.toSet());
+        Map<String, SourceState> updatedSourceStates = BuildReport.timed("hash", () -> existingSources.parallelStream()
+            .collect(Collectors.toConcurrentMap(Function.identity(), src -> SourceState.of(Paths.get(src)))));
+        BuildReport.count("filesHashed", updatedSourceStates.size());
+        Set<String> deletedSources = new HashSet<>();
+        for (String path : Sets.difference(changedPaths, existingSources)) {
+            if (metaInfo.sources.containsKey(path)) {
+                deletedSources.add(path);
+            } else if (!path.endsWith(".java")) {
+                String dirPrefix = path + File.separator;
+                metaInfo.sources.keySet().stream().filter(src -> src.startsWith(dirPrefix)).forEach(deletedSources::add);
+            }
+        }
+        return compileIncrementally(sourceDir, classpath, System.getenv("CLASSPATH"), metaInfo, updatedSourceStates,
             deletedSources);
+    }
+
+    private static boolean compileIncrementally(String sourceDir, String classpath, @Nullable String externalClasspath,
+        MetaInfo metaInfo, Map<String, SourceState> updatedSourceStates, Set<String> deletedSources)
+    {
+        Map<String, SourceState> changedAndNewSources = findChangedAndNewSources(updatedSourceStates, metaInfo.sources);
+        Path classPath = Paths.get(classpath);
+        // dependents of changed external classes are recompiled as well, unless they do not use changed members
+        ExternalClasspath external = ExternalClasspath.of(metaInfo.dir, externalClasspath);
+        Map<String, AbiChange> externalAbiChanges =
+            BuildReport.timed("externalClasspath", () -> external.findAbiChanges(metaInfo));
+        externalAbiChanges.forEach((cls, change) -> debug("ABI change of external " + cls + ": " + change));
+        AnnotationProcessing processing = AnnotationProcessing.of(metaInfo.dir, externalClasspath, external.changed());
+        OutputJar outputJar = OutputJar.ifEnabled(classPath, metaInfo.dir);
+        // classes of deleted sources (and of sources generated from them) disappear, so their dependents are
+        // recompiled right away
+        Set<String> deletedGenerated = processing.deletedFiles(metaInfo, deletedSources);
+        Set<String> excludedSources = Sets.union(deletedSources, deletedGenerated).immutableCopy();
+        Set<String> deletedClasses = metaInfo.classesBySources(excludedSources);
+        Set<String> sourcesToRecompile = BuildReport.timed("dependencyAnalysis", () -> processing.sourcesToCompile(
+            metaInfo,
+            Sets.union(
+                Sets.union(changedAndNewSources.keySet(), dependentSources(metaInfo, deletedClasses)),
+                affectedDependentSources(metaInfo, classPath, externalAbiChanges, excludedSources)),
+            excludedSources, true));
+        BuildReport.count("sourcesChanged", changedAndNewSources.size());
+        BuildReport.count("sourcesDeleted", deletedSources.size());
+        BuildReport.count("externalClassesChanged", externalAbiChanges.size());
+
+        String fullRebuildReason = processing.fullRebuildReason(metaInfo, !sourcesToRecompile.isEmpty(),
+            JAVAC.canTrackGeneratedFiles());
+        if (fullRebuildReason != null) {
+            processing.close();
+            System.out.println(fullRebuildReason + " Recompiling all sources.");
+            BuildReport.mode("full");
+            Set<String> allSources = BuildReport.timed("scan", () -> findAllSources(sourceDir));
+            return compileFully(sourceDir, allSources, classpath, externalClasspath, metaInfo.dir);
+        }
 
         if (sourcesToRecompile.isEmpty()) {
             System.out.println("Nothing to compile.");
+            Set<Path> changedFiles = new HashSet<>();
+            if (!deletedSources.isEmpty()) {
+                OutputJar.invalidate(metaInfo.dir);
+                ExternalClasspath.invalidateBuilt(classPath);
+                // nothing depends on deleted sources
+                metaInfo.deleteClassesAndDeps(deletedClasses);
+                metaInfo.deleteSources(deletedSources);
+                processing.updateMetaInfo(metaInfo, deletedGenerated);
+                deleteClassFiles(classPath, deletedClasses);
+                deletedClasses.forEach(cls -> changedFiles.add(classPath.resolve(classNameToFileName(cls))));
+                BuildReport.classesChanged(Collections.emptySet(), Collections.emptySet(), deletedClasses);
+            }
+            if (!deletedSources.isEmpty() || external.changed()) {
+                external.update(metaInfo);
+            }
+            if (!updatedSourceStates.isEmpty() || !deletedSources.isEmpty() || external.changed()) {
+                // only timestamps changed -- remember them to avoid hashing same files next time
+                metaInfo.addSources(updatedSourceStates);
+                BuildReport.timed("saveMetaInfo", metaInfo::save);
+                external.save();
+            }
+            processing.save();
+            changedFiles.addAll(processing.commit(deletedGenerated));
+            processing.close();
+            if (outputJar != null) {
+                BuildReport.timed("jar", () -> outputJar.update(changedFiles));
+            }
             return true;
         } else {
             System.out.println("Sources to compile: " + System.lineSeparator() +
                 String.join(System.lineSeparator(), sourcesToRecompile));
         }
 
-        Path classpathCopy = getTmpDir();
-        Path javacDest = getTmpDir();
+        // Classpath is not modified until all waves succeed. Compiler either uses it directly, with classes being
+        // recompiled hidden, or, if hiding is not supported, a temporary copy made of hard links to other classes.
+        Path classpathCopy = JAVAC.canHideClasses() ? null : getTmpDir();
+        BuildCache buildCache = processing.isEmpty() ? BuildCache.ifEnabled() : null;
+        List<Path> waveDests = new ArrayList<>();
         try {
-            Set<String> classesToSkip = metaInfo.classesBySources(sourcesToRecompile);
-            Path classPath = Paths.get(classpath);
-            copyClassFiles(classPath, classpathCopy, Sets.difference(metaInfo.classes.keySet(), classesToSkip));
-            if (javac(sourcesToRecompile, classpathCopy.toString(), javacDest.toString())) {
+            Set<String> classesToSkip = new HashSet<>(deletedClasses);
+            classesToSkip.addAll(metaInfo.classesBySources(sourcesToRecompile));
+            if (classpathCopy != null) {
+                Set<String> classesToLink = Sets.difference(metaInfo.classes.keySet(), classesToSkip);
+                BuildReport.timed("linkClasses", () -> linkClassFiles(classPath, classpathCopy, classesToLink));
+                BuildReport.count("classesLinked", classesToLink.size());
+            }
+
+            // Dependents are compiled in waves: only those using changed parts of classes ABI are recompiled
+            Set<String> compiledSources = new HashSet<>();
+            Set<String> staleGenerated = new HashSet<>(deletedGenerated);
+            Map<String, AbiChange> abiChanges = new HashMap<>(externalAbiChanges);
+            List<Collection<ClassFileDesc>> waveDescs = new ArrayList<>();
+            Map<Path, Collection<ClassFileDesc>> compiledClasses = new HashMap<>();
+            Set<String> waveSources = sourcesToRecompile;
+
+            // Sources restored from build cache make up the first wave, other sources are compiled in the next one
+            Map<String, BuildCache.Entry> restoredEntries = Collections.emptyMap();
+            if (buildCache != null) {
+                Map<String, SourceState> sourceStates = sourcesToRecompile.stream().collect(Collectors.toMap(
+                    Function.identity(), src -> changedAndNewSources.getOrDefault(src, metaInfo.sources.get(src))));
+                restoredEntries = BuildReport.timed("cacheLookup", () -> buildCache.findRestorable(sourceDir,
+                    sourcesToRecompile, sourceStates, deletedSources, metaInfo, external.changedAbiHashes(),
+                    externalClasspath));
+            }
+            Set<String> sourcesAfterRestore = Collections.emptySet();
+            if (!restoredEntries.isEmpty()) {
+                waveSources = restoredEntries.keySet();
+                sourcesAfterRestore = Sets.difference(sourcesToRecompile, waveSources);
+                System.out.println("Sources restored from build cache: " + System.lineSeparator() +
+                    String.join(System.lineSeparator(), waveSources));
+            }
+
+            while (!waveSources.isEmpty()) {
+                // files generated from wave sources are regenerated by the wave
+                Set<String> waveGenerated = AnnotationProcessing.generatedFiles(metaInfo, waveSources);
+                staleGenerated.addAll(waveGenerated);
+                Set<String> oldWaveClasses = metaInfo.classesBySources(Sets.union(waveSources, waveGenerated));
+                if (classpathCopy != null) {
+                    deleteClassFiles(classpathCopy, Sets.difference(oldWaveClasses, classesToSkip));
+                }
+                classesToSkip.addAll(oldWaveClasses);
+
+                Path waveDest = getTmpDir();
+                List<String> waveClasspath = waveDests.stream().map(Path::toString).collect(Collectors.toList());
+                waveClasspath.add(classpathCopy != null ? classpathCopy.toString() : classpath);
+                if (externalClasspath != null && !externalClasspath.isEmpty()) {
+                    waveClasspath.add(externalClasspath);
+                }
+                waveDests.add(waveDest);
+                HiddenClasses hidden = classpathCopy == null
+                    ? new HiddenClasses(classPath, ImmutableSet.copyOf(classesToSkip))
+                    : null;
+                Collection<ClassFileDesc> descs;
+                BuildReport.count("waves", 1);
+                if (restoredEntries.isEmpty()) {
+                    Set<String> sources = waveSources;
+                    BuildReport.count("sourcesRecompiled", sources.size());
+                    AnnotationProcessing.Round round = processing.isEmpty() ? null
+                        : processing.newRound(sources, waveDest, classPath, waveDests.size() == 1);
+                    boolean success = BuildReport.timed("javac",
+                        () -> compileWave(metaInfo, sources, waveClasspath, hidden, waveDest, round));
+                    if (!success) {
+                        return false;
+                    }
+                    descs = BuildReport.timed("examine", () -> CLASS_FILE_EXAMINER.apply(findAllClassFiles(waveDest)));
+                    BuildReport.count("classesExamined", descs.size());
+                    compiledClasses.put(waveDest, descs);
+                } else {
+                    descs = new ArrayList<>();
+                    Collection<BuildCache.Entry> entries = restoredEntries.values();
+                    BuildReport.timed("cacheRestore", () -> {
+                        for (BuildCache.Entry entry : entries) {
+                            buildCache.restore(entry, waveDest);
+                            descs.addAll(entry.descs);
+                        }
+                    });
+                    BuildReport.count("sourcesRestored", restoredEntries.size());
+                }
+                waveDescs.add(descs);
+                compiledSources.addAll(waveSources);
+                compiledSources.addAll(waveGenerated);
+
+                waveSources = BuildReport.timed("abiAnalysis", () -> {
+                    Map<String, AbiChange> waveAbiChanges =
+                        findAbiChanges(metaInfo, classPath, waveDest, oldWaveClasses, descs, abiChanges);
+                    abiChanges.putAll(waveAbiChanges);
+                    waveAbiChanges.forEach((cls, change) -> debug("ABI change of " + cls + ": " + change));
+                    Set<String> excluded = Sets.union(compiledSources, excludedSources);
+                    return processing.sourcesToCompile(metaInfo,
+                        affectedDependentSources(metaInfo, classPath, waveAbiChanges, excluded), excluded, false);
+                });
+                if (!waveSources.isEmpty()) {
+                    System.out.println("Sources to compile due to ABI changes: " + System.lineSeparator() +
+                        String.join(System.lineSeparator(), waveSources));
+                }
+                if (!restoredEntries.isEmpty()) {
+                    waveSources = Sets.union(waveSources, sourcesAfterRestore).immutableCopy();
+                    restoredEntries = Collections.emptyMap();
+                }
+            }
+
+            BuildReport.timed("updateMetaInfo", () -> {
                 metaInfo.deleteClassesAndDeps(classesToSkip);
                 metaInfo.deleteSources(deletedSources);
-                Set<String> newClassNames = new HashSet<>();
-                enrichMetaInfo(metaInfo, sourceDir, sourcesToRecompile, javacDest, newClassNames);
-                metaInfo.save();
-                deleteClassFiles(classPath, classesToSkip);
-                copyClassFiles(javacDest, classPath, newClassNames);
-                return true;
-            }
-            return false;
+                metaInfo.addSources(updatedSourceStates);
+                processing.updateMetaInfo(metaInfo, staleGenerated);
+                waveDescs.forEach(descs -> enrichMetaInfo(metaInfo, sourceDir, descs, processing));
+                external.update(metaInfo);
+            });
+            OutputJar.invalidate(metaInfo.dir);
+            ExternalClasspath.invalidateBuilt(classPath);
+            BuildReport.timed("saveMetaInfo", metaInfo::save);
+            external.save();
+            processing.save();
+            // class files javac has produced the same bytes for are left intact, see syncClassFiles
+            Set<Path> changedFiles = new HashSet<>();
+            BuildReport.timed("copyClasses", () -> {
+                List<Set<String>> waveClasses = waveDescs.stream()
+                    .map(descs -> descs.stream().map(desc -> desc.fullClassName).collect(Collectors.toSet()))
+                    .collect(Collectors.toList());
+                Set<String> compiledClassNames = waveClasses.stream().flatMap(Set::stream).collect(Collectors.toSet());
+                Set<String> classesDeleted = Sets.difference(classesToSkip, compiledClassNames).immutableCopy();
+                deleteClassFiles(classPath, classesDeleted);
+                Set<String> writtenClasses = new HashSet<>();
+                for (int i = 0; i < waveDests.size(); i++) {
+                    writtenClasses.addAll(syncClassFiles(waveDests.get(i), classPath, waveClasses.get(i)));
+                }
+                changedFiles.addAll(processing.commit(staleGenerated));
+                Sets.union(writtenClasses, classesDeleted)
+                    .forEach(cls -> changedFiles.add(classPath.resolve(classNameToFileName(cls))));
+                BuildReport.count("classesCopied", writtenClasses.size());
+                BuildReport.count("classesUnchanged", compiledClassNames.size() - writtenClasses.size());
+                BuildReport.classesChanged(Sets.difference(writtenClasses, classesToSkip),
+                    Sets.intersection(writtenClasses, classesToSkip), classesDeleted);
+            });
+            if (outputJar != null) {
+                BuildReport.timed("jar", () -> outputJar.update(changedFiles));
+            }
+            if (buildCache != null) {
+                BuildReport.timed("cacheStore", () -> buildCache.store(sourceDir, compiledClasses, metaInfo,
+                    classPath, externalClasspath));
+            }
+            return true;
         } finally {
-            FileUtils.deleteQuietly(classpathCopy.toFile());
-            FileUtils.deleteQuietly(javacDest.toFile());
+            processing.close();
+            if (buildCache != null) {
+                buildCache.saveStats();
+            }
+            if (classpathCopy != null) {
+                FileUtils.deleteQuietly(classpathCopy.toFile());
+            }
+            waveDests.forEach(dir -> FileUtils.deleteQuietly(dir.toFile()));
         }
     }
 
-    private static String metaInfoPathForSourceDir(String sourceDir) {
-        return String.format("%s%s.incjc-meta-%s",
-            System.getProperty("user.home"), File.separator, DigestUtils.md5Hex(sourceDir));
+    // Large waves are split into partitions compiled in parallel; partitions of each level are compiled against
+    // output of previous levels, which is moved to the wave destination once all partitions of a level succeed
+    private static boolean compileWave(MetaInfo metaInfo, Set<String> sources, List<String> classpath,
+        @Nullable HiddenClasses hidden, Path dest, @Nullable AnnotationProcessing.Round processing)
+    {
+        if (processing != null) {
+            // generated sources are not to be split between partitions
+            return javac(sources, String.join(File.pathSeparator, classpath), dest.toString(), null, hidden,
+                processing);
+        }
+        int javacThreads = javacThreads();
+        List<List<Set<String>>> levels = SourcePartitions.plan(metaInfo, sources, javacThreads);
+        if (levels.size() == 1 && levels.get(0).size() == 1) {
+            return javac(sources, String.join(File.pathSeparator, classpath), dest.toString(), null, hidden, null);
+        }
+        debug("Compiling in partitions: " + levels.stream()
+            .map(partitions -> partitions.stream().map(p -> String.valueOf(p.size())).collect(Collectors.joining(" + ")))
+            .collect(Collectors.joining(", then ")));
+
+        List<String> levelClasspath = new ArrayList<>();
+        levelClasspath.add(dest.toString());
+        levelClasspath.addAll(classpath);
+        List<ByteArrayOutputStream> outputs = new ArrayList<>();
+        boolean success = true;
+        // partitions are compiled by threads of their own, not by common pool, which is shared with other parallel work
+        ExecutorService executor = Executors.newFixedThreadPool(javacThreads);
+        try {
+            for (List<Set<String>> partitions : levels) {
+                List<Path> partitionDests = new ArrayList<>();
+                try {
+                    List<Callable<Boolean>> tasks = new ArrayList<>();
+                    for (int i = 0; i < partitions.size(); i++) {
+                        Set<String> partition = partitions.get(i);
+                        Path partitionDest = getTmpDir();
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        partitionDests.add(partitionDest);
+                        outputs.add(output);
+                        tasks.add(() -> javac(partition, String.join(File.pathSeparator, levelClasspath),
+                            partitionDest.toString(), output, hidden, null));
+                    }
+                    // all partitions are waited for, so that none of them writes to its directory once it is deleted
+                    for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                        success &= result.get();
+                    }
+                    if (!success) {
+                        break;
+                    }
+                    partitionDests.forEach(partitionDest -> moveFiles(partitionDest, dest));
+                } finally {
+                    partitionDests.forEach(dir -> FileUtils.deleteQuietly(dir.toFile()));
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while compiling partitions", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                : new RuntimeException("Failed to compile partition", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if (!success) {
+            // may be caused by dependencies not known yet, so errors are only reported by compiling all sources
+            debug("Compilation of partitions failed, compiling all wave sources together");
+            try {
+                FileUtils.cleanDirectory(dest.toFile());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to clean directory " + dest, e);
+            }
+            return javac(sources, String.join(File.pathSeparator, classpath), dest.toString(), null, hidden, null);
+        }
+        outputs.forEach(output -> System.err.print(output.toString()));
+        return true;
     }
 
-    private static void enrichMetaInfo(MetaInfo metaInfo, String sourceDir, Set<String> sources, Path classesRoot) {
-        enrichMetaInfo(metaInfo, sourceDir, sources, classesRoot, null);
+    private static Set<String> dependentSources(MetaInfo metaInfo, Set<String> classNames) {
+        Set<String> result = new HashSet<>();
+        for (String cls : classNames) {
+            for (String dependent : metaInfo.deps.dependentsOf(cls)) {
+                String src = metaInfo.classes.get(dependent);
+                if (src != null) {
+                    result.add(src);
+                }
+            }
+        }
+        return result;
     }
 
-    private static void enrichMetaInfo(MetaInfo metaInfo, String sourceDir, Set<String> sources, Path classesRoot,
-        @Nullable Set<String> outClassNames)
+    // Removed and added classes, as well as classes without previously known ABI, are changed at class level.
+    // Subclasses inherit ABI changes of their supertypes, compiled in the same or previous waves.
+    private static Map<String, AbiChange> findAbiChanges(MetaInfo metaInfo, Path classPath, Path waveDest,
+        Set<String> oldClasses, Collection<ClassFileDesc> newDescs, Map<String, AbiChange> prevChanges)
     {
-        metaInfo.addSources(sources.stream().collect(Collectors.toMap(Function.identity(), src -> hash(new File(src)))));
-        for (ClassFileDesc desc : CLASS_FILE_EXAMINER.apply(findAllClassFiles(classesRoot))) {
-            metaInfo.classes.put(desc.fullClassName, sourceDir + File.separator + desc.sourceFile);
-            for (String dep : desc.dependsOn) {
-                metaInfo.deps.computeIfAbsent(dep, k -> new HashSet<>()).add(desc.fullClassName);
+        Map<String, AbiChange> ownChanges = new ConcurrentHashMap<>();
+        Map<String, List<String>> superTypes = new ConcurrentHashMap<>();
+        newDescs.parallelStream().forEach(desc -> {
+            String cls = desc.fullClassName;
+            ClassFile newCf = ClassFile.read(waveDest.resolve(classNameToFileName(cls)));
+            List<String> classSuperTypes = new ArrayList<>(newCf.interfaceNames);
+            if (newCf.superClassName != null) {
+                classSuperTypes.add(newCf.superClassName);
+            }
+            superTypes.put(cls, classSuperTypes);
+
+            Path oldClassFile = classPath.resolve(classNameToFileName(cls));
+            if (!oldClasses.contains(cls) || !Files.exists(oldClassFile)) {
+                ownChanges.put(cls, AbiChange.CLASS_LEVEL);
+            } else if (!Objects.equals(metaInfo.abiHashes.get(cls), desc.abiHash)) {
+                ownChanges.put(cls, AbiChange.between(ClassFile.read(oldClassFile), newCf));
+            }
+        });
+        for (String cls : oldClasses) {
+            if (!superTypes.containsKey(cls)) {
+                ownChanges.put(cls, AbiChange.CLASS_LEVEL); // removed
+            }
+        }
+
+        Map<String, AbiChange> result = new HashMap<>();
+        Map<String, AbiChange> memo = new HashMap<>();
+        for (String cls : Sets.union(ownChanges.keySet(), superTypes.keySet())) {
+            AbiChange change = effectiveAbiChange(cls, ownChanges, superTypes, prevChanges, memo);
+            if (!change.isEmpty()) {
+                result.put(cls, change);
             }
-            if (outClassNames != null) {
-                outClassNames.add(desc.fullClassName);
+        }
+        return result;
+    }
+
+    private static AbiChange effectiveAbiChange(String cls, Map<String, AbiChange> ownChanges,
+        Map<String, List<String>> superTypes, Map<String, AbiChange> prevChanges, Map<String, AbiChange> memo)
+    {
+        AbiChange change = memo.get(cls);
+        if (change != null) {
+            return change;
+        }
+        if (!superTypes.containsKey(cls)) {
+            // not compiled in this wave
+            change = prevChanges.getOrDefault(cls, ownChanges.getOrDefault(cls, AbiChange.NONE));
+        } else {
+            change = ownChanges.getOrDefault(cls, AbiChange.NONE);
+            for (String superType : superTypes.get(cls)) {
+                change = change.merge(effectiveAbiChange(superType, ownChanges, superTypes, prevChanges, memo));
             }
         }
+        memo.put(cls, change);
+        return change;
+    }
+
+    // dependents' class files are checked for usages of changed members
+    private static Set<String> affectedDependentSources(MetaInfo metaInfo, Path classPath,
+        Map<String, AbiChange> abiChanges, Set<String> excludedSources)
+    {
+        Set<String> result = new HashSet<>();
+        Map<String, ClassFile> dependentClassFiles = new HashMap<>();
+        abiChanges.forEach((cls, change) -> {
+            for (String dependent : metaInfo.deps.dependentsOf(cls)) {
+                String src = metaInfo.classes.get(dependent);
+                if (src == null || excludedSources.contains(src) || result.contains(src)) {
+                    continue;
+                }
+                if (change.classLevel) {
+                    result.add(src);
+                    continue;
+                }
+                Path dependentClassFile = classPath.resolve(classNameToFileName(dependent));
+                if (!Files.exists(dependentClassFile)) {
+                    result.add(src);
+                    continue;
+                }
+                ClassFile dependentCf = dependentClassFiles.computeIfAbsent(dependent, k -> ClassFile.read(dependentClassFile));
+                if (change.affects(cls, dependentCf)) {
+                    result.add(src);
+                }
+            }
+        });
+        return result;
+    }
+
+    static String metaInfoPathForSourceDir(String sourceDir) {
+        return String.format("%s%s.incjc-meta-%s",
+            System.getProperty("user.home"), File.separator, DigestUtils.md5Hex(sourceDir));
     }
 
-    private static Set<String> findAllSources(String dir) {
+    private static void enrichMetaInfo(MetaInfo metaInfo, String sourceDir, Collection<ClassFileDesc> descs,
+        AnnotationProcessing processing)
+    {
+        for (ClassFileDesc desc : descs) {
+            metaInfo.addClass(desc.fullClassName, processing.sourcePath(metaInfo, sourceDir, desc.sourceFile));
+            metaInfo.setAbiHash(desc.fullClassName, desc.abiHash);
+            for (String dep : desc.dependsOn) {
+                metaInfo.addDependency(dep, desc.fullClassName);
+            }
+        }
+    }
+
+    static Set<String> findAllSources(String dir) {
         try {
             return Files.find(Paths.get(dir), Integer.MAX_VALUE,
                 (path, attrs) -> attrs.isRegularFile() && path.toFile().getName().endsWith(".java"))
@@ -177,17 +772,31 @@ public class IncJC {
         }
     }
 
-    private static Map<String, String> findChangedAndNewSources(Set<String> allSources, Map<String, String> prevSourceHashes) {
-        Map<String, String> result = new HashMap<>();
+    // Sources, which size or mtime differ from saved ones, are hashed; others are assumed unchanged
+    static Map<String, SourceState> findUpdatedSourceStates(Set<String> allSources,
+        Map<String, SourceState> prevSourceStates)
+    {
+        return allSources.parallelStream()
+            .filter(src -> {
+                SourceState oldState = prevSourceStates.get(src);
+                return oldState == null || !oldState.sameStat(SourceState.readAttributes(Paths.get(src)));
+            })
+            .collect(Collectors.toConcurrentMap(Function.identity(), src -> SourceState.of(Paths.get(src))));
+    }
+
+    static Map<String, SourceState> findChangedAndNewSources(Map<String, SourceState> updatedSourceStates,
+        Map<String, SourceState> prevSourceStates)
+    {
+        Map<String, SourceState> result = new HashMap<>();
 
-        allSources.forEach(src -> {
-            String oldHash = prevSourceHashes.get(src);
-            String newHash = hash(Paths.get(src).toFile());
+        updatedSourceStates.forEach((src, newState) -> {
+            SourceState oldState = prevSourceStates.get(src);
+            String oldHash = oldState != null ? oldState.hash : null;
             debug("Comparing hashes for " + src + ":" +
                 System.lineSeparator() + "old = " + oldHash +
-                System.lineSeparator() + "new = " + newHash);
-            if (!Objects.equals(oldHash, newHash)) {
-                result.put(src, newHash);
+                System.lineSeparator() + "new = " + newState.hash);
+            if (!Objects.equals(oldHash, newState.hash)) {
+                result.put(src, newState);
             }
         });
 
@@ -200,16 +809,67 @@ public class IncJC {
         return result;
     }
 
-    private static void copyClassFiles(Path src, Path dst, Set<String> classNames) {
-        if (!classNames.isEmpty()) {
-            debug("Copying classes to " + dst + ":" + System.lineSeparator() + String.join(System.lineSeparator(), classNames));
+    // Only class files whose contents differ are written, so that unchanged ones keep their modification time;
+    // returns names of classes written
+    static Set<String> syncClassFiles(Path src, Path dst, Set<String> classNames) {
+        Set<String> result = classNames.parallelStream()
+            .filter(className -> {
+                String relPathToClass = classNameToFileName(className);
+                return syncFile(src.resolve(relPathToClass), dst.resolve(relPathToClass));
+            })
+            .collect(Collectors.toSet());
+        if (!result.isEmpty()) {
+            debug("Classes written to " + dst + ":" + System.lineSeparator() + String.join(System.lineSeparator(), result));
+        }
+        return result;
+    }
+
+    // Destination file is replaced by renaming a temporary file written next to it, so that it is never seen
+    // partially written; returns false if it has the same contents already
+    static boolean syncFile(Path src, Path dst) {
+        try {
+            byte[] bytes = Files.readAllBytes(src);
+            if (Files.isRegularFile(dst) && Files.size(dst) == bytes.length
+                && Arrays.equals(bytes, Files.readAllBytes(dst)))
+            {
+                return false;
+            }
+            Files.createDirectories(dst.getParent());
+            Path tmpFile = dst.resolveSibling(TMP_INCJC_PREFIX + dst.getFileName());
+            try {
+                Files.write(tmpFile, bytes);
+                try {
+                    Files.move(tmpFile, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmpFile, dst, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to copy " + src + " to " + dst, e);
         }
+    }
+
+    // hard links are made instead of copies where possible: no file contents are copied
+    static void linkClassFiles(Path src, Path dst, Set<String> classNames) {
+        boolean linksSupported = true;
         for (String className : classNames) {
             String relPathToClass = classNameToFileName(className);
             Path srcFile = src.resolve(relPathToClass);
             Path dstFile = dst.resolve(relPathToClass);
             try {
                 Files.createDirectories(dstFile.getParent());
+                if (linksSupported) {
+                    try {
+                        Files.createLink(dstFile, srcFile);
+                        continue;
+                    } catch (UnsupportedOperationException | IOException e) {
+                        debug("Failed to link " + srcFile + ", copying classes instead: " + e);
+                        linksSupported = false;
+                    }
+                }
                 Files.copy(srcFile, dstFile);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to copy class from " + srcFile +  " to " + dstFile, e);
@@ -217,6 +877,18 @@ public class IncJC {
         }
     }
 
+    private static void moveFiles(Path src, Path dst) {
+        try (Stream<Path> files = Files.walk(src)) {
+            for (Path srcFile : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                Path dstFile = dst.resolve(src.relativize(srcFile));
+                Files.createDirectories(dstFile.getParent());
+                Files.move(srcFile, dstFile);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to move files from " + src + " to " + dst, e);
+        }
+    }
+
     private static void deleteClassFiles(Path classPath, Set<String> classNames) {
         for (String className : classNames) {
             Path filePath = classPath.resolve(classNameToFileName(className));
@@ -233,14 +905,6 @@ public class IncJC {
         return className.replace(".", File.separator) + ".class";
     }
 
-    private static String hash(File file) {
-        try {
-            return DigestUtils.sha256Hex(Files.readAllBytes(file.toPath()));
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to calculate hash for " + file, e);
-        }
-    }
-
     private static Path getTmpDir() {
         try {
             return Files.createTempDirectory(TMP_INCJC_PREFIX);
@@ -249,30 +913,42 @@ public class IncJC {
         }
     }
 
-    private static boolean javac(Set<String> sources, String classpath, String dstDir) {
-        try {
-            String classpathEnv = System.getenv("CLASSPATH");
-            if (classpathEnv != null) {
-                classpath += File.pathSeparator + classpathEnv;
-            }
-            ArrayList<String> cmd = Lists.newArrayList(getJdkExecutable("javac"), "-cp", classpath, "-d", dstDir);
-            cmd.addAll(sources);
-            debug(String.join(" ", cmd));
-            Process p = Runtime.getRuntime().exec(cmd.toArray(new String[]{}));
-            Thread inputPump = inputStreamPump(p.getInputStream(), System.out);
-            Thread errorPump = inputStreamPump(p.getErrorStream(), System.err);
-            inputPump.start();
-            errorPump.start();
-            int retval = p.waitFor();
-            inputPump.join();
-            errorPump.join();
-            return retval == 0;
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private static Set<Path> findAllClassFiles(Path dir) {
+    private static boolean javac(Set<String> sources, String classpath, String dstDir,
+        @Nullable AnnotationProcessing.Round processing)
+    {
+        return javac(sources, classpath, dstDir, null, null, processing);
+    }
+
+    private static boolean javac(Set<String> sources, String classpath, String dstDir, @Nullable OutputStream output,
+        @Nullable HiddenClasses hidden, @Nullable AnnotationProcessing.Round processing)
+    {
+        BuildReport.count("javacInvocations", 1);
+        boolean success = JAVAC.compile(sources, classpath, dstDir, output, hidden, processing);
+        if (success && processing != null) {
+            processing.finish();
+        }
+        return success;
+    }
+
+    private static String withExternalClasspath(String classpath, @Nullable String externalClasspath) {
+        return externalClasspath != null && !externalClasspath.isEmpty()
+            ? classpath + File.pathSeparator + externalClasspath
+            : classpath;
+    }
+
+    // INCJC_JAVAC=fork selects external javac process; in-process compiler is used by default, if available
+    private static Javac createJavac() {
+        if (!"fork".equals(System.getenv("INCJC_JAVAC"))) {
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler != null) {
+                return new InProcessJavac(compiler);
+            }
+            debug("No system java compiler available, falling back to external javac process");
+        }
+        return new ForkedJavac();
+    }
+
+    static Set<Path> findAllClassFiles(Path dir) {
         try {
             return Files.find(dir, Integer.MAX_VALUE,
                 (path, attrs) -> attrs.isRegularFile() && path.toFile().getName().endsWith(".class"))
@@ -0,0 +1,22 @@
+package incjc;
+
+import java.io.OutputStream;
+import java.util.Collection;
+import org.jetbrains.annotations.Nullable;
+
+public interface Javac {
+
+    default boolean compile(Collection<String> sources, String classpath, String dstDir) {
+        return compile(sources, classpath, dstDir, null, null, null);
+    }
+
+    // Compiler output goes to the stream given, or to System.out / System.err if it is null. Hidden classes are
+    // only supported if canHideClasses returns true. Annotation processors are run as set up by the round given (see
+    // AnnotationProcessing), files they generate are only attributed to sources if canTrackGeneratedFiles returns true.
+    boolean compile(Collection<String> sources, String classpath, String dstDir, @Nullable OutputStream output,
+        @Nullable HiddenClasses hidden, @Nullable AnnotationProcessing.Round processing);
+
+    boolean canHideClasses();
+
+    boolean canTrackGeneratedFiles();
+}
@@ -4,7 +4,6 @@ import com.google.common.collect.Lists;
 import java.io.File;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,34 +15,80 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static incjc.ProcHelpers.getJdkExecutable;
-import static incjc.ProcHelpers.getProcessOutput;
+import static incjc.ProcHelpers.processOutputLines;
 
+// Class files are examined in batches, run in parallel, so that neither command lines nor tools output kept in memory
+// grow with the number of class files
 public class JdkBasedClassFileExaminer implements Function<Collection<Path>, Collection<ClassFileDesc>> {
 
+    // total length of class file paths per javap / jdeps invocation, within command line length limits
+    private static final int MAX_BATCH_LENGTH =
+        System.getProperty("os.name").startsWith("Windows") ? 30_000 : 200_000;
+
+    private static final Pattern SRC_PATTERN = Pattern.compile("Compiled from \"(.*\\.java)\"");
+    private static final Pattern CLASS_PATTERN = Pattern.compile(".*(class|interface) ([^\\s<]+).*\\{");
+    private static final Pattern DEP_PATTERN = Pattern.compile("(\\S+)\\s+->\\s+(\\S+)");
+
     @Override
     public Collection<ClassFileDesc> apply(Collection<Path> classFiles) {
+        return batches(classFiles).parallelStream()
+            .flatMap(batch -> examine(batch).stream())
+            .collect(Collectors.toList());
+    }
+
+    private static List<List<Path>> batches(Collection<Path> classFiles) {
+        List<List<Path>> result = new ArrayList<>();
+        List<Path> batch = new ArrayList<>();
+        int length = 0;
+        for (Path classFile : classFiles) {
+            int pathLength = classFile.toString().length() + 1;
+            if (!batch.isEmpty() && length + pathLength > MAX_BATCH_LENGTH) {
+                result.add(batch);
+                batch = new ArrayList<>();
+                length = 0;
+            }
+            batch.add(classFile);
+            length += pathLength;
+        }
+        if (!batch.isEmpty()) {
+            result.add(batch);
+        }
+        return result;
+    }
+
+    private static Collection<ClassFileDesc> examine(List<Path> classFiles) {
         List<String> classFileList = classFiles.stream().map(Path::toString).collect(Collectors.toList());
+        // javap output is not detailed enough for ABI fingerprints, those are taken from class files directly
+        Map<String, String> abiHashes = classFiles.parallelStream()
+            .map(ClassFile::read)
+            .collect(Collectors.toConcurrentMap(cf -> cf.className, Abi::fingerprint));
 
+        Map<String, ClassFileDesc> descMap = new HashMap<>();
+        String[] srcFileName = new String[1]; // from "Compiled from" line, which precedes class declaration line
         ArrayList<String> javapCmd = Lists.newArrayList(getJdkExecutable("javap"));
         javapCmd.addAll(classFileList);
-        String javapOut = getProcessOutput(javapCmd.toArray(new String[]{}));
-
-        Pattern srcPattern = Pattern.compile("Compiled from \"(.*\\.java)\"\n.*(class|interface) ([^\\s<]+).*\\{");
-        Matcher srcMatcher = srcPattern.matcher(javapOut);
-        Map<String, ClassFileDesc> descMap = new HashMap<>();
-        while (srcMatcher.find()) {
-            String className = srcMatcher.group(3);
-
-            String packagePathPrefix = "";
-            int lastDotIndex = className.lastIndexOf('.');
-            if (lastDotIndex != -1) {
-                packagePathPrefix = className.substring(0, lastDotIndex).replace('.', File.separatorChar) + File.separatorChar;
+        processOutputLines(javapCmd.toArray(new String[]{}), line -> {
+            Matcher srcMatcher = SRC_PATTERN.matcher(line);
+            if (srcMatcher.matches()) {
+                srcFileName[0] = srcMatcher.group(1);
+                return;
             }
+            Matcher classMatcher = srcFileName[0] != null ? CLASS_PATTERN.matcher(line) : null;
+            if (classMatcher != null && classMatcher.matches()) {
+                String className = classMatcher.group(2);
 
-            String srcFile = packagePathPrefix + srcMatcher.group(1);
+                String packagePathPrefix = "";
+                int lastDotIndex = className.lastIndexOf('.');
+                if (lastDotIndex != -1) {
+                    packagePathPrefix = className.substring(0, lastDotIndex).replace('.', File.separatorChar) + File.separatorChar;
+                }
 
-            descMap.put(className, new ClassFileDesc(className, new HashSet<>(), srcFile));
-        }
+                String srcFile = packagePathPrefix + srcFileName[0];
+
+                descMap.put(className, new ClassFileDesc(className, new HashSet<>(), srcFile, abiHashes.get(className)));
+            }
+            srcFileName[0] = null;
+        });
 
         fillDependencies(classFileList, descMap);
 
@@ -51,19 +96,23 @@ public class JdkBasedClassFileExaminer implements Function<Collection<Path>, Col
     }
 
     private static void fillDependencies(Collection<String> classFileList, Map<String, ClassFileDesc> target) {
-        Pattern depPattern = Pattern.compile("(\\S+)\\s+->\\s+(\\S+)");
         ArrayList<String> jdepsCmd = Lists.newArrayList(getJdkExecutable("jdeps"), "-v");
         jdepsCmd.addAll(classFileList);
-        String jdepsOut = getProcessOutput(jdepsCmd.toArray(new String[]{}));
-        Arrays.stream(jdepsOut.split(System.lineSeparator()))
-            .filter(line -> line.matches("\\s+.*"))
-            .map(depPattern::matcher)
-            .filter(Matcher::find)
-            .filter(m -> !isStandardLibraryClass(m.group(2)))
-            .forEach(m -> target.get(m.group(1)).dependsOn.add(m.group(2)));
+        processOutputLines(jdepsCmd.toArray(new String[]{}), line -> {
+            if (line.isEmpty() || !Character.isWhitespace(line.charAt(0))) {
+                return;
+            }
+            Matcher m = DEP_PATTERN.matcher(line);
+            if (m.find() && !isStandardLibraryClass(m.group(2))) {
+                ClassFileDesc desc = target.get(m.group(1));
+                if (desc != null) {
+                    desc.dependsOn.add(m.group(2));
+                }
+            }
+        });
     }
 
-    private static boolean isStandardLibraryClass(String className) {
+    static boolean isStandardLibraryClass(String className) {
         return className.startsWith("java.")
             || className.startsWith("javax.")
             || className.startsWith("javafx.");
@@ -1,98 +1,230 @@
 package incjc;
 
+import com.google.common.collect.ForwardingMap;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
 
 import static incjc.Debug.debug;
 
 public class MetaInfo {
     public final String dir;
 
-    public final Map<String, String> classes;   // class name -> source file path
-    public final Map<String, String> sources;   // source file path -> hash
-    public final Map<String, Set<String>> deps; // class name -> set of dependent class names
+    // should be modified only through methods below, so that changes are journaled; all but sources may be read
+    // lazily, see loadLazily
+    public final Map<String, String> classes = new LazyMap<>(this::load);   // class name -> source file path
+    public final Map<String, SourceState> sources = new HashMap<>();    // source file path -> hash, size and mtime
+    public final DependencyGraph deps = new DependencyGraph(this::load);    // class name -> set of dependent classes
+    public final Map<String, String> abiHashes = new LazyMap<>(this::load); // class name -> ABI hash, incl. external
+    // originating source -> files generated by annotation processors, see AnnotationProcessing
+    public final DependencyGraph generated = new DependencyGraph(this::load);
 
-    private static final String CLASSES_FILE = "classes.txt";
-    private static final String SOURCES_FILE = "sources.txt";
-    private static final String DEPS_FILE = "deps.txt";
-    private static final String FIELD_SEP = "->";
+    private final Map<String, Set<String>> classesBySource = new HashMap<>(); // reverse index of classes
+
+    private static final MetaInfoStore TEXT_STORE = new TextMetaInfoStore();
+    private static final MetaInfoStore BINARY_STORE = new BinaryMetaInfoStore();
+
+    // INCJC_META_FORMAT=binary selects compact binary format; metainfo saved in other format is migrated on load
+    private static final MetaInfoStore STORE =
+        "binary".equals(System.getenv("INCJC_META_FORMAT")) ? BINARY_STORE : TEXT_STORE;
+
+    // journal is merged into snapshot once replaying it would cost more than reading a half of the snapshot
+    private static final double MAX_JOURNAL_TO_SNAPSHOT_RATIO = 0.5;
+
+    private static final int PUT_CLASS = 1;
+    private static final int REMOVE_CLASS = 2;
+    private static final int PUT_SOURCE = 3;
+    private static final int REMOVE_SOURCE = 4;
+    private static final int ADD_DEP = 5;
+    private static final int REMOVE_DEP = 6;
+    private static final int REMOVE_DEPS = 7;
+    private static final int PUT_ABI = 8;
+    private static final int REMOVE_ABI = 9;
+    private static final int ADD_GENERATED = 10;
+    private static final int REMOVE_GENERATED = 11;
+
+    // Loaded metainfo may be kept in memory between builds (by daemon), and is reused as long as the files in its
+    // directory are the same as after its load / last save, that is, not changed by another incjc process
+    private static final Map<String, MetaInfo> CACHE = new ConcurrentHashMap<>();
+    private static volatile boolean cacheEnabled;
+
+    private final MetaInfoJournal journal = new MetaInfoJournal();
+    private boolean snapshotExists;
+    private String dirStamp;
+
+    @Nullable
+    private Runnable loader;
+    private volatile boolean loaded = true;
 
     public MetaInfo(String dir) {
         this.dir = dir;
+        Path dirPath = Paths.get(dir);
+        MetaInfoStore existingStore = BINARY_STORE.existsIn(dirPath) ? BINARY_STORE
+            : TEXT_STORE.existsIn(dirPath) ? TEXT_STORE
+            : null;
+        if (existingStore == null) {
+            return; // freshly created by createOrReset
+        }
         try {
-            classes = readMapFromFile(Paths.get(dir, CLASSES_FILE));
-            sources = readMapFromFile(Paths.get(dir, SOURCES_FILE));
-            deps = readDepsFromFile(Paths.get(dir, DEPS_FILE));
+            existingStore.read(dirPath, this);
+            List<Runnable> deferredOps = new ArrayList<>();
+            if (loader == null) {
+                indexClasses();
+            } else {
+                Runnable read = loader;
+                loader = () -> {
+                    read.run();
+                    indexClasses();
+                    deferredOps.forEach(Runnable::run);
+                };
+            }
+            // journaled changes of parts not read yet are applied once those are read
+            MetaInfoJournal.replay(dirPath, (op, args) -> {
+                if (loader != null && op != PUT_SOURCE && op != REMOVE_SOURCE) {
+                    deferredOps.add(() -> apply(op, args));
+                } else {
+                    apply(op, args);
+                }
+            });
         }
-        catch (IOException e) {
+        catch (IOException | RuntimeException e) {
             throw new RuntimeException("Failed to parse metainfo", e);
         }
+        snapshotExists = true;
+        if (existingStore != STORE) {
+            debug("Migrating metainfo in " + dir + " to " + STORE.getClass().getSimpleName());
+            try {
+                writeSnapshot();
+                existingStore.delete(dirPath);
+                MetaInfoJournal.delete(dirPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to migrate metainfo in " + dir, e);
+            }
+        }
     }
 
-    private Map<String, String> readMapFromFile(Path filePath) throws IOException {
-        Map<String, String> result = new HashMap<>();
+    // Called by store while reading snapshot: parts of metainfo other than sources are read by loader given, once any
+    // of them is first accessed
+    void loadLazily(Runnable loader) {
+        this.loader = loader;
+        loaded = false;
+    }
 
-        Files.lines(filePath).forEach(line -> {
-            if (!line.isEmpty()) {
-                String[] parts = line.split(FIELD_SEP);
-                result.put(parts[0], parts[1]);
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            Runnable read = loader;
+            if (read == null) {
+                return; // loaded by another thread, or being loaded by this one
             }
-        });
+            loader = null;
+            debug("Reading rest of metainfo in " + dir);
+            try {
+                read.run();
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Failed to parse metainfo in " + dir, e);
+            }
+            loaded = true;
+        }
+    }
 
-        return result;
+    private void indexClasses() {
+        classes.forEach((cls, src) -> classesBySource.computeIfAbsent(src, k -> new HashSet<>()).add(cls));
     }
 
-    private void writeMapToFile(Map<String, String> map, Path filePath) throws IOException {
-        try (PrintWriter w = new PrintWriter(filePath.toFile())) {
-            map.forEach((k, v) -> w.println(k + FIELD_SEP + v));
+    public static MetaInfo load(String dir) {
+        if (!cacheEnabled) {
+            return new MetaInfo(dir);
+        }
+        MetaInfo cached = CACHE.get(dir);
+        if (cached != null && cached.dirStamp.equals(dirStamp(dir))) {
+            debug("Using metainfo cached in memory for " + dir);
+            return cached;
         }
+        MetaInfo metaInfo = new MetaInfo(dir);
+        metaInfo.dirStamp = dirStamp(dir);
+        CACHE.put(dir, metaInfo);
+        return metaInfo;
     }
 
-    private Map<String, Set<String>> readDepsFromFile(Path filePath) throws IOException {
-        Map<String, Set<String>> result = new HashMap<>();
-
-        Files.lines(filePath).forEach(line -> {
-            if (!line.isEmpty()) {
-                String[] parts = line.split(FIELD_SEP);
-                result.computeIfAbsent(parts[0], k -> new HashSet<>()).add(parts[1]);
-            }
-        });
+    public static void enableCache() {
+        cacheEnabled = true;
+    }
 
-        return result;
+    // should be called once a build fails unexpectedly, as cached metainfo may be modified but not saved
+    public static void clearCache() {
+        CACHE.clear();
     }
 
-    private void writeDepsToFile(Path filePath) throws IOException {
-        try (PrintWriter w = new PrintWriter(filePath.toFile())) {
-            deps.forEach((cls1, set) -> set.forEach(cls2 -> w.println(cls1 + FIELD_SEP + cls2)));
+    private static String dirStamp(String dir) {
+        // subdirectories are not part of metainfo itself (see ExternalClasspath)
+        try (Stream<Path> files = Files.list(Paths.get(dir))) {
+            return files.filter(Files::isRegularFile).sorted().map(file -> {
+                BasicFileAttributes attrs = SourceState.readAttributes(file);
+                return String.format("%s:%d:%d:%s", file.getFileName(), attrs.size(),
+                    attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+            }).collect(Collectors.joining(";"));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list metainfo directory " + dir, e);
         }
     }
 
+    // Appends changes made since load / previous save to the journal; the whole snapshot is only rewritten when
+    // there is no snapshot yet, or the journal has grown too large
     public void save() {
-        createOrReset(dir);
+        Path dirPath = Paths.get(dir);
         try {
-            writeMapToFile(classes, Paths.get(dir, CLASSES_FILE));
-            writeMapToFile(sources, Paths.get(dir, SOURCES_FILE));
-            writeDepsToFile(Paths.get(dir, DEPS_FILE));
+            if (!snapshotExists) {
+                writeSnapshot();
+                snapshotExists = true;
+            } else if (journal.hasPending()) {
+                journal.commit(dirPath);
+                if (MetaInfoJournal.size(dirPath) > STORE.size(dirPath) * MAX_JOURNAL_TO_SNAPSHOT_RATIO) {
+                    debug("Compacting metainfo journal in " + dir);
+                    writeSnapshot();
+                }
+            }
         } catch (IOException e) {
             throw new RuntimeException("Failed to save metainfo to " + dir, e);
         }
+        if (cacheEnabled) {
+            dirStamp = dirStamp(dir);
+            CACHE.put(dir, this);
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        Path dirPath = Paths.get(dir);
+        // IDs of deleted classes would otherwise stay in graphs for as long as metainfo is cached
+        deps.compact();
+        generated.compact();
+        STORE.write(dirPath, this);
+        // snapshot includes everything journal does, and journal replay on top of it is harmless, if interrupted here
+        MetaInfoJournal.delete(dirPath);
+        journal.clearPending();
     }
 
     public static boolean existsIn(String dir) {
-        return Paths.get(dir).toFile().exists()
-            && Paths.get(dir, CLASSES_FILE).toFile().exists()
-            && Paths.get(dir, SOURCES_FILE).toFile().exists()
-            && Paths.get(dir, DEPS_FILE).toFile().exists();
+        Path dirPath = Paths.get(dir);
+        return Files.isDirectory(dirPath) && (BINARY_STORE.existsIn(dirPath) || TEXT_STORE.existsIn(dirPath));
     }
 
     public static void createOrReset(String destDir) {
@@ -107,76 +239,161 @@ public class MetaInfo {
                 }
             }
             Files.createDirectory(destPath);
-            Files.createFile(destPath.resolve(CLASSES_FILE));
-            Files.createFile(destPath.resolve(SOURCES_FILE));
-            Files.createFile(destPath.resolve(DEPS_FILE));
         } catch (IOException e) {
             throw new RuntimeException("Failed to intialize metinfo directory " + destDir, e);
         }
     }
 
-    // XXX: needs optimization
+    private void apply(int op, String[] args) {
+        switch (op) {
+            case PUT_CLASS:
+                removeFromSourceIndex(args[0], classes.put(args[0], args[1]));
+                classesBySource.computeIfAbsent(args[1], k -> new HashSet<>()).add(args[0]);
+                break;
+            case REMOVE_CLASS:
+                removeFromSourceIndex(args[0], classes.remove(args[0]));
+                abiHashes.remove(args[0]);
+                break;
+            case PUT_SOURCE:
+                sources.put(args[0], SourceState.parse(args[1]));
+                break;
+            case REMOVE_SOURCE:
+                sources.remove(args[0]);
+                break;
+            case ADD_DEP:
+                deps.addEdge(args[0], args[1]);
+                break;
+            case REMOVE_DEP:
+                deps.removeEdge(args[0], args[1]);
+                break;
+            case REMOVE_DEPS:
+                deps.removeDependents(args[0]);
+                break;
+            case PUT_ABI:
+                abiHashes.put(args[0], args[1]);
+                break;
+            case REMOVE_ABI:
+                abiHashes.remove(args[0]);
+                break;
+            case ADD_GENERATED:
+                generated.addEdge(args[0], args[1]);
+                break;
+            case REMOVE_GENERATED:
+                generated.removeEdge(args[0], args[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metainfo journal operation " + op);
+        }
+    }
+
+    private void removeFromSourceIndex(String className, @Nullable String sourceFile) {
+        if (sourceFile != null) {
+            Set<String> sourceClasses = classesBySource.get(sourceFile);
+            sourceClasses.remove(className);
+            if (sourceClasses.isEmpty()) {
+                classesBySource.remove(sourceFile);
+            }
+        }
+    }
+
+    private void update(int op, String... args) {
+        apply(op, args);
+        journal.record(op, args);
+    }
+
     public Set<String> affectedSources(Set<String> changedSources) {
         // 1. find classes from sources given
-        Set<String> classSet = new HashSet<>();
-        classes.forEach((cls, src) -> {
-            if (changedSources.contains(src)) {
-                classSet.add(cls);
-            }
-        });
+        Set<String> classSet = classesBySources(changedSources);
         debug("Dependency search -- initial class set: " + System.lineSeparator() + String.join(System.lineSeparator(), classSet));
 
         // 2. collect all reachable classes in a graph, starting with classSet
-        Set<String> reachable = new HashSet<>(classSet);
-        do {
-            Set<String> nextReachable = new HashSet<>();
-            for (String c : reachable) {
-                Set<String> dependent = deps.get(c);
-                if (dependent != null) {
-                    for (String dep : dependent) {
-                        if (!classSet.contains(dep) && !reachable.contains(dep)) {
-                            nextReachable.add(dep);
-                        }
-                    }
-                }
-            }
-            classSet.addAll(reachable);
-            reachable = nextReachable;
-            if (!reachable.isEmpty()) {
-                debug("Dependency search -- next class set: " + System.lineSeparator() + String.join(System.lineSeparator(), reachable));
-            }
-        } while (!reachable.isEmpty());
+        Set<String> reachable = deps.reachableFrom(classSet);
+        debug("Dependency search -- reachable class set: " + System.lineSeparator() + String.join(System.lineSeparator(), reachable));
 
         // 3. switch from classes back to sources
-        return classSet.stream().map(classes::get).collect(Collectors.toSet());
+        return reachable.stream().map(classes::get).filter(Objects::nonNull).collect(Collectors.toSet());
     }
 
-    // XXX: not optimal -- full classes scan required
     public Set<String> classesBySources(Set<String> changedSources) {
-        return classes.entrySet().stream()
-            .filter(e -> changedSources.contains(e.getValue()))
-            .map(Map.Entry::getKey)
-            .collect(Collectors.toSet());
+        Set<String> result = new HashSet<>();
+        if (changedSources.isEmpty()) {
+            return result;
+        }
+        load();
+        for (String src : changedSources) {
+            result.addAll(classesBySource.getOrDefault(src, Collections.emptySet()));
+        }
+        return result;
+    }
+
+    public void addClass(String className, String sourceFile) {
+        update(PUT_CLASS, className, sourceFile);
+    }
+
+    public void addDependency(String className, String dependentClassName) {
+        update(ADD_DEP, className, dependentClassName);
     }
 
+    public void removeDependency(String className, String dependentClassName) {
+        update(REMOVE_DEP, className, dependentClassName);
+    }
+
+    public void setAbiHash(String className, String abiHash) {
+        update(PUT_ABI, className, abiHash);
+    }
+
+    // for external classes, see ExternalClasspath; ABI of project classes is removed together with them
+    public void removeAbiHash(String className) {
+        update(REMOVE_ABI, className);
+    }
+
+    // Dependencies of deleted classes are removed, while edges to their dependents are kept: those are derived from
+    // dependents' class files, which are not necessarily recompiled
     public void deleteClassesAndDeps(Set<String> classesToDelete) {
         for (String cls : classesToDelete) {
-            classes.remove(cls);
-            deps.remove(cls);
+            update(REMOVE_CLASS, cls);
+            for (String dependency : new ArrayList<>(deps.dependenciesOf(cls))) {
+                update(REMOVE_DEP, dependency, cls);
+            }
         }
+    }
+
+    public void addGeneratedFile(String origin, String generatedFile) {
+        update(ADD_GENERATED, origin, generatedFile);
+    }
 
-        for (Set<String> depSet : deps.values()) {
-            depSet.removeAll(classesToDelete);
+    // edges from generated files to files generated from them are kept, same as for deleted classes
+    public void deleteGeneratedFiles(Set<String> generatedFiles) {
+        for (String file : generatedFiles) {
+            for (String origin : new ArrayList<>(generated.dependenciesOf(file))) {
+                update(REMOVE_GENERATED, origin, file);
+            }
         }
     }
 
     public void deleteSources(Set<String> sourcesToDelete) {
         for (String src : sourcesToDelete) {
-            sources.remove(src);
+            update(REMOVE_SOURCE, src);
         }
     }
 
-    public void addSources(Map<String, String> moreSources) {
-        sources.putAll(moreSources);
+    public void addSources(Map<String, SourceState> moreSources) {
+        moreSources.forEach((src, state) -> update(PUT_SOURCE, src, state.toString()));
+    }
+
+    // map filled on first access
+    private static class LazyMap<K, V> extends ForwardingMap<K, V> {
+        private final Map<K, V> map = new HashMap<>();
+        private final Runnable beforeAccess;
+
+        LazyMap(Runnable beforeAccess) {
+            this.beforeAccess = beforeAccess;
+        }
+
+        @Override
+        protected Map<K, V> delegate() {
+            beforeAccess.run();
+            return map;
+        }
     }
- }
+}
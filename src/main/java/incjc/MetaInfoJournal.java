@@ -0,0 +1,147 @@
+package incjc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static incjc.Debug.debug;
+
+/*
+ * Append-only log of metainfo changes made since the last snapshot.
+ *
+ * Each save appends a single record: payload length (int), payload CRC32 (int), payload. Payload is a sequence of
+ * operations: opcode (byte), argument count (byte), arguments (modified UTF-8 strings). A record which is truncated or
+ * does not match its checksum (interrupted save) is ignored along with everything after it.
+ *
+ * All operations set or remove a value for some key, so replaying the log on top of a snapshot which already
+ * contains some of its changes gives the same result -- snapshot may be replaced before the log is deleted.
+ */
+class MetaInfoJournal {
+
+    static final String JOURNAL_FILE = "journal.bin";
+
+    private static final int HEADER_SIZE = 8;
+
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+
+    interface OpConsumer {
+        void accept(int op, String[] args);
+    }
+
+    void record(int op, String... args) {
+        try {
+            pending.writeByte(op);
+            pending.writeByte(args.length);
+            for (String arg : args) {
+                pending.writeUTF(arg);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e); // never thrown by in-memory stream
+        }
+    }
+
+    boolean hasPending() {
+        return pendingBytes.size() > 0;
+    }
+
+    void clearPending() {
+        pendingBytes.reset();
+    }
+
+    // appends pending operations as a single record and forces it to disk
+    void commit(Path dir) throws IOException {
+        byte[] payload = pendingBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        try (FileChannel ch = FileChannel.open(dir.resolve(JOURNAL_FILE),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            while (record.hasRemaining()) {
+                ch.write(record);
+            }
+            ch.force(false);
+        }
+        clearPending();
+    }
+
+    static void replay(Path dir, OpConsumer consumer) throws IOException {
+        Path journalFile = dir.resolve(JOURNAL_FILE);
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(journalFile);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        int validLength = 0;
+        int records = 0;
+        while (buf.remaining() >= HEADER_SIZE) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, buf.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            applyRecord(bytes, buf.position(), length, consumer);
+            buf.position(buf.position() + length);
+            validLength = buf.position();
+            records++;
+        }
+        debug("Replayed " + records + " metainfo journal records from " + journalFile);
+
+        if (validLength < bytes.length) {
+            debug("Dropping incomplete metainfo journal tail in " + journalFile);
+            try (FileChannel ch = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                ch.truncate(validLength);
+            }
+        }
+    }
+
+    private static void applyRecord(byte[] bytes, int offset, int length, OpConsumer consumer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        while (true) {
+            int op;
+            try {
+                op = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return;
+            }
+            String[] args = new String[in.readUnsignedByte()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            consumer.accept(op, args);
+        }
+    }
+
+    static long size(Path dir) {
+        try {
+            Path journalFile = dir.resolve(JOURNAL_FILE);
+            return Files.exists(journalFile) ? Files.size(journalFile) : 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get metainfo journal size in " + dir, e);
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(JOURNAL_FILE));
+    }
+}
@@ -0,0 +1,18 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+interface MetaInfoStore {
+
+    boolean existsIn(Path dir);
+
+    void read(Path dir, MetaInfo target) throws IOException;
+
+    // replaces previous snapshot; each file is replaced atomically
+    void write(Path dir, MetaInfo source) throws IOException;
+
+    void delete(Path dir) throws IOException;
+
+    long size(Path dir) throws IOException;
+}
@@ -0,0 +1,274 @@
+package incjc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Builds several modules listed in a build descriptor, each having its own sources, classpath directory and metainfo.
+ * Modules are built in dependency order, those not depending on each other -- in parallel (up to INCJC_JAVAC_THREADS
+ * at a time); dependents of a module failed to build are skipped.
+ *
+ * Descriptor lists one module per line: name, sourcepath, classpath and names of modules it depends on, separated by
+ * whitespace; paths are relative to the descriptor directory. Empty lines and lines starting with # are ignored:
+ *
+ *   # name  sourcepath     classpath        dependencies
+ *   core    core/src       core/classes
+ *   app     app/src        app/classes      core
+ *
+ * Classpath directories of module dependencies (direct and transitive) precede CLASSPATH entries in external classpath
+ * of a module, so that its classes are only recompiled once ABI of dependencies' classes they use changes, and an
+ * unchanged module is not compiled at all (see ExternalClasspath).
+ */
+public class Modules {
+
+    static class Module {
+        final String name;
+        final String sourceDir;
+        final String classpath;
+        final List<String> dependencies;
+
+        Module(String name, String sourceDir, String classpath, List<String> dependencies) {
+            this.name = name;
+            this.sourceDir = sourceDir;
+            this.classpath = classpath;
+            this.dependencies = dependencies;
+        }
+    }
+
+    // exit code of a module skipped due to failed dependencies
+    private static final int SKIPPED = -1;
+
+    // returns exit code, same as IncJC.run
+    public static int build(String descriptor) {
+        Map<String, Module> modules = parse(Paths.get(descriptor));
+        List<Module> order = topologicalOrder(modules);
+
+        BuildReport.begin();
+        int threads = Math.max(1, Math.min(IncJC.javacThreads(), modules.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        ModuleOutput moduleOut = new ModuleOutput(out);
+        ModuleOutput moduleErr = new ModuleOutput(err);
+        System.setOut(new PrintStream(moduleOut, true));
+        System.setErr(new PrintStream(moduleErr, true));
+        int retval = 0;
+        try {
+            Map<String, CompletableFuture<Integer>> results = new LinkedHashMap<>();
+            for (Module module : order) {
+                CompletableFuture<?>[] dependencies = module.dependencies.stream()
+                    .map(results::get)
+                    .toArray(CompletableFuture[]::new);
+                results.put(module.name, CompletableFuture.allOf(dependencies).thenApplyAsync(ignored -> {
+                    List<String> failed = module.dependencies.stream()
+                        .filter(dep -> results.get(dep).join() != 0)
+                        .collect(Collectors.toList());
+                    if (!failed.isEmpty()) {
+                        synchronized (out) {
+                            out.println("Module " + module.name + " skipped: " + String.join(", ", failed) +
+                                " failed to build.");
+                        }
+                        BuildReport.count("modulesSkipped", 1);
+                        return SKIPPED;
+                    }
+                    return BuildReport.timed("module " + module.name,
+                        () -> buildModule(module, modules, moduleOut, moduleErr));
+                }, executor));
+            }
+            for (CompletableFuture<Integer> result : results.values()) {
+                int moduleRetval = result.join();
+                retval = Math.max(retval, moduleRetval == SKIPPED ? IncJC.RETVAL_COMPILATION_ERROR : moduleRetval);
+            }
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+            executor.shutdown();
+            BuildReport.mode("modules");
+            BuildReport.end(retval == 0 ? "success"
+                : retval == IncJC.RETVAL_COMPILATION_ERROR ? "compilationError"
+                : "failure");
+        }
+        return retval;
+    }
+
+    private static int buildModule(Module module, Map<String, Module> modules, ModuleOutput moduleOut,
+        ModuleOutput moduleErr)
+    {
+        List<String> externalClasspath = new ArrayList<>();
+        for (String dep : transitiveDependencies(module, modules)) {
+            externalClasspath.add(modules.get(dep).classpath);
+        }
+        String classpathEnv = System.getenv("CLASSPATH");
+        if (classpathEnv != null && !classpathEnv.isEmpty()) {
+            externalClasspath.add(classpathEnv);
+        }
+
+        ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream errBuffer = new ByteArrayOutputStream();
+        moduleOut.capture(outBuffer);
+        moduleErr.capture(errBuffer);
+        int retval;
+        try {
+            boolean success = IncJC.compileSourceDir(module.classpath, module.sourceDir,
+                String.join(File.pathSeparator, externalClasspath));
+            retval = success ? 0 : IncJC.RETVAL_COMPILATION_ERROR;
+        } catch (RuntimeException e) {
+            System.err.println("FAILURE: " + e.getMessage());
+            e.printStackTrace(System.err);
+            MetaInfo.clearCache();
+            retval = IncJC.RETVAL_UNEXPECTED_FAILURE;
+        } finally {
+            moduleOut.capture(null);
+            moduleErr.capture(null);
+        }
+
+        // output of modules built in parallel is printed module by module
+        synchronized (moduleOut.target) {
+            moduleOut.target.println("Module " + module.name + ":");
+            moduleOut.target.print(outBuffer.toString());
+            moduleOut.target.flush();
+            moduleErr.target.print(errBuffer.toString());
+            moduleErr.target.flush();
+            moduleOut.target.println(retval == 0 ? "Module " + module.name + " built."
+                : "Module " + module.name + " failed to build.");
+        }
+        return retval;
+    }
+
+    static Map<String, Module> parse(Path descriptor) {
+        Path baseDir = descriptor.toAbsolutePath().getParent();
+        Map<String, Module> result = new LinkedHashMap<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(descriptor);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read modules descriptor " + descriptor, e);
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length < 3) {
+                throw new RuntimeException(String.format("%s:%d: expected <name> <sourcepath> <classpath> " +
+                    "[<dependency>...]", descriptor, i + 1));
+            }
+            Module module = new Module(fields[0], baseDir.resolve(fields[1]).normalize().toString(),
+                baseDir.resolve(fields[2]).normalize().toString(),
+                Arrays.asList(Arrays.copyOfRange(fields, 3, fields.length)));
+            if (result.put(module.name, module) != null) {
+                throw new RuntimeException(String.format("%s:%d: duplicate module %s", descriptor, i + 1, module.name));
+            }
+        }
+        for (Module module : result.values()) {
+            for (String dep : module.dependencies) {
+                if (!result.containsKey(dep)) {
+                    throw new RuntimeException("Module " + module.name + " depends on unknown module " + dep);
+                }
+            }
+        }
+        return result;
+    }
+
+    // dependencies go before their dependents
+    private static List<Module> topologicalOrder(Map<String, Module> modules) {
+        List<Module> result = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (Module module : modules.values()) {
+            visit(module, modules, visited, new LinkedHashSet<>(), result);
+        }
+        return result;
+    }
+
+    private static void visit(Module module, Map<String, Module> modules, Set<String> visited,
+        LinkedHashSet<String> path, List<Module> result)
+    {
+        if (visited.contains(module.name)) {
+            return;
+        }
+        if (!path.add(module.name)) {
+            List<String> cycle = new ArrayList<>(path);
+            cycle = cycle.subList(cycle.indexOf(module.name), cycle.size());
+            throw new RuntimeException("Module dependency cycle: " + String.join(" -> ", cycle) + " -> " + module.name);
+        }
+        for (String dep : module.dependencies) {
+            visit(modules.get(dep), modules, visited, path, result);
+        }
+        path.remove(module.name);
+        visited.add(module.name);
+        result.add(module);
+    }
+
+    // nearest dependencies first, so that their classes take precedence on the classpath
+    private static Set<String> transitiveDependencies(Module module, Map<String, Module> modules) {
+        Set<String> result = new LinkedHashSet<>();
+        List<String> queue = new ArrayList<>(module.dependencies);
+        for (int i = 0; i < queue.size(); i++) {
+            String dep = queue.get(i);
+            if (result.add(dep)) {
+                queue.addAll(modules.get(dep).dependencies);
+            }
+        }
+        debug("Dependencies of module " + module.name + ": " + result);
+        return result;
+    }
+
+    // Routes output of threads building modules to their buffers; other output goes to the target stream as is
+    private static class ModuleOutput extends OutputStream {
+        final PrintStream target;
+        private final ThreadLocal<OutputStream> buffer = new ThreadLocal<>();
+
+        ModuleOutput(PrintStream target) {
+            this.target = target;
+        }
+
+        void capture(@Nullable OutputStream buffer) {
+            if (buffer != null) {
+                this.buffer.set(buffer);
+            } else {
+                this.buffer.remove();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            OutputStream out = buffer.get();
+            (out != null ? out : target).write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream out = buffer.get();
+            (out != null ? out : target).write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.get() == null) {
+                target.flush();
+            }
+        }
+    }
+}
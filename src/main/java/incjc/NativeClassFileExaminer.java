@@ -0,0 +1,42 @@
+package incjc;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static incjc.JdkBasedClassFileExaminer.isStandardLibraryClass;
+
+public class NativeClassFileExaminer implements Function<Collection<Path>, Collection<ClassFileDesc>> {
+
+    @Override
+    public Collection<ClassFileDesc> apply(Collection<Path> classFiles) {
+        return classFiles.parallelStream()
+            .map(NativeClassFileExaminer::examine)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+    }
+
+    private static ClassFileDesc examine(Path classFile) {
+        ClassFile cf = ClassFile.read(classFile);
+        // same classes are skipped as with javap: modules and classes compiled without source file info
+        if ((cf.accessFlags & ClassFile.ACC_MODULE) != 0 || cf.sourceFile == null) {
+            return null;
+        }
+
+        String packagePathPrefix = "";
+        int lastDotIndex = cf.className.lastIndexOf('.');
+        if (lastDotIndex != -1) {
+            packagePathPrefix = cf.className.substring(0, lastDotIndex).replace('.', File.separatorChar) + File.separatorChar;
+        }
+
+        Set<String> dependsOn = cf.referencedClasses.stream()
+            .filter(cls -> !isStandardLibraryClass(cls))
+            .collect(Collectors.toSet());
+
+        return new ClassFileDesc(cf.className, dependsOn, packagePathPrefix + cf.sourceFile, Abi.fingerprint(cf));
+    }
+}
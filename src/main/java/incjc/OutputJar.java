@@ -0,0 +1,480 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Jar kept next to the classpath directory (<classpath>.jar), having the same files as the directory. Full build
+ * writes it anew; incremental build only patches entries of files added, changed or deleted by the build: the central
+ * directory is cut off, new versions of files are appended, and a new central directory is written after them.
+ * Previous versions of changed and deleted files are left in the jar as unreferenced data, which is dropped once it
+ * makes up more than half of the jar, by copying live entries (as is, without recompression) to a new jar.
+ *
+ * Size and modification time of the jar are kept in metainfo directory once it is updated, and deleted before
+ * classpath directory is modified by any build (with the jar enabled or not); unless the jar is found the same as
+ * recorded, it is written anew from the classpath directory.
+ */
+public class OutputJar {
+
+    private static final String STAMP_FILE = "jar.txt";
+    private static final String JAR_SUFFIX = ".jar";
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    // zip64 is not supported
+    private static final int MAX_ENTRIES = 0xffff;
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    private static final double MAX_GARBAGE_RATIO = 0.5;
+
+    private final Path classPath;
+    private final Path jar;
+    private final Path stampFile;
+    private final boolean inSync;
+
+    private OutputJar(Path classPath, String metaDir) {
+        this.classPath = classPath;
+        this.jar = classPath.resolveSibling(classPath.getFileName() + JAR_SUFFIX);
+        this.stampFile = Paths.get(metaDir, STAMP_FILE);
+        this.inSync = stamp().equals(readStamp());
+    }
+
+    // INCJC_JAR=1 enables the jar
+    @Nullable
+    public static OutputJar ifEnabled(Path classPath, String metaDir) {
+        return Debug.TRUE_VALUES.contains(System.getenv("INCJC_JAR")) ? new OutputJar(classPath, metaDir) : null;
+    }
+
+    // should be called before metainfo is saved, so that the jar is written anew if the build is interrupted
+    public static void invalidate(String metaDir) {
+        Path file = Paths.get(metaDir, STAMP_FILE);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + file, e);
+        }
+    }
+
+    public void writeAll() {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(classPath)) {
+            files = walk.filter(Files::isRegularFile)
+                .filter(file -> !file.getFileName().toString().startsWith(IncJC.TMP_INCJC_PREFIX))
+                .sorted()
+                .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list files in " + classPath, e);
+        }
+        debug("Writing " + jar + " (" + files.size() + " entries)");
+        Path tmpFile = tmpFile();
+        try (FileChannel out = create(tmpFile)) {
+            List<Entry> entries = new ArrayList<>();
+            for (Path file : files) {
+                entries.add(append(out, file));
+            }
+            writeCentralDirectory(out, entries);
+        } catch (IOException e) {
+            deleteQuietly(tmpFile);
+            throw new RuntimeException("Failed to write " + jar, e);
+        }
+        replaceWith(tmpFile);
+        BuildReport.count("jarEntriesWritten", files.size());
+        writeStamp();
+    }
+
+    // files given are absolute paths within classpath directory; deleted ones do not exist anymore
+    public void update(Collection<Path> changedFiles) {
+        Directory dir = inSync ? readDirectory() : null;
+        if (dir == null) {
+            writeAll();
+            return;
+        }
+        if (changedFiles.isEmpty()) {
+            return;
+        }
+
+        Map<String, Entry> entries = dir.entries;
+        List<Path> filesToAppend = new ArrayList<>();
+        for (Path file : changedFiles) {
+            entries.remove(entryName(file));
+            if (Files.isRegularFile(file)) {
+                filesToAppend.add(file);
+            }
+        }
+        long liveSize = entries.values().stream().mapToLong(Entry::dataSize).sum();
+        long garbageSize = dir.centralDirectoryOffset - liveSize;
+        if (entries.size() + filesToAppend.size() > MAX_ENTRIES) {
+            throw new RuntimeException("Too many entries for " + jar + ", zip64 is not supported");
+        } else if (garbageSize > MAX_GARBAGE_RATIO * dir.centralDirectoryOffset) {
+            compact(entries.values(), filesToAppend);
+        } else {
+            debug("Patching " + jar + ": " + changedFiles.size() + " entries changed");
+            try (FileChannel out = FileChannel.open(jar, StandardOpenOption.WRITE)) {
+                out.truncate(dir.centralDirectoryOffset);
+                out.position(dir.centralDirectoryOffset);
+                List<Entry> newEntries = new ArrayList<>(entries.values());
+                for (Path file : filesToAppend) {
+                    newEntries.add(append(out, file));
+                }
+                writeCentralDirectory(out, newEntries);
+                out.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to update " + jar, e);
+            }
+            BuildReport.count("jarEntriesWritten", filesToAppend.size());
+            writeStamp();
+        }
+    }
+
+    // live entries are copied as is, so that only files changed are compressed
+    private void compact(Collection<Entry> liveEntries, List<Path> filesToAppend) {
+        debug("Compacting " + jar);
+        Path tmpFile = tmpFile();
+        try (FileChannel in = FileChannel.open(jar, StandardOpenOption.READ); FileChannel out = create(tmpFile)) {
+            List<Entry> newEntries = new ArrayList<>();
+            for (Entry entry : liveEntries) {
+                long offset = out.position();
+                long size = entry.dataSize();
+                for (long copied = 0; copied < size; ) {
+                    copied += in.transferTo(entry.offset + copied, size - copied, out);
+                }
+                newEntries.add(entry.movedTo(offset));
+            }
+            for (Path file : filesToAppend) {
+                newEntries.add(append(out, file));
+            }
+            writeCentralDirectory(out, newEntries);
+        } catch (IOException e) {
+            deleteQuietly(tmpFile);
+            throw new RuntimeException("Failed to compact " + jar, e);
+        }
+        replaceWith(tmpFile);
+        BuildReport.count("jarCompactions", 1);
+        BuildReport.count("jarEntriesWritten", filesToAppend.size());
+        writeStamp();
+    }
+
+    private String entryName(Path file) {
+        return classPath.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    // local header followed by file contents, deflated unless it does not make them smaller
+    private Entry append(FileChannel out, Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        byte[] data = deflate(bytes);
+        int method = DEFLATED;
+        if (data.length >= bytes.length) {
+            data = bytes;
+            method = STORED;
+        }
+        byte[] name = entryName(file).getBytes(StandardCharsets.UTF_8);
+        Entry entry = new Entry(name, method, dosTime(Files.getLastModifiedTime(file).toMillis()), crc.getValue(),
+            data.length, bytes.length, out.position(), LOCAL_HEADER_SIZE + name.length);
+        if (entry.offset + entry.dataSize() > MAX_OFFSET) {
+            throw new IOException("Jar is too large, zip64 is not supported");
+        }
+        ByteBuffer header = buffer(LOCAL_HEADER_SIZE + name.length);
+        header.putInt(LOCAL_HEADER_SIG)
+            .putShort((short) VERSION)
+            .putShort((short) UTF8_FLAG)
+            .putShort((short) method)
+            .putInt(entry.dosTime)
+            .putInt((int) entry.crc)
+            .putInt((int) entry.compressedSize)
+            .putInt((int) entry.size)
+            .putShort((short) name.length)
+            .putShort((short) 0)
+            .put(name);
+        writeFully(out, header.flip());
+        writeFully(out, ByteBuffer.wrap(data));
+        return entry;
+    }
+
+    private static void writeCentralDirectory(FileChannel out, List<Entry> entries) throws IOException {
+        if (entries.size() > MAX_ENTRIES) {
+            throw new IOException("Too many entries, zip64 is not supported");
+        }
+        long offset = out.position();
+        int size = 0;
+        for (Entry entry : entries) {
+            size += CENTRAL_HEADER_SIZE + entry.name.length;
+        }
+        ByteBuffer buf = buffer(size + END_SIZE);
+        for (Entry entry : entries) {
+            buf.putInt(CENTRAL_HEADER_SIG)
+                .putShort((short) VERSION)
+                .putShort((short) VERSION)
+                .putShort((short) UTF8_FLAG)
+                .putShort((short) entry.method)
+                .putInt(entry.dosTime)
+                .putInt((int) entry.crc)
+                .putInt((int) entry.compressedSize)
+                .putInt((int) entry.size)
+                .putShort((short) entry.name.length)
+                .putShort((short) 0)    // extra field length
+                .putShort((short) 0)    // comment length
+                .putShort((short) 0)    // disk number
+                .putShort((short) 0)    // internal attributes
+                .putInt(0)              // external attributes
+                .putInt((int) entry.offset)
+                .put(entry.name);
+        }
+        buf.putInt(END_SIG)
+            .putShort((short) 0)
+            .putShort((short) 0)
+            .putShort((short) entries.size())
+            .putShort((short) entries.size())
+            .putInt(size)
+            .putInt((int) offset)
+            .putShort((short) 0);
+        writeFully(out, buf.flip());
+    }
+
+    // null if the jar is missing or is not the one written here (e.g. has zip64 records or data descriptors)
+    @Nullable
+    private Directory readDirectory() {
+        if (!Files.isRegularFile(jar)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(jar, StandardOpenOption.READ)) {
+            long fileSize = in.size();
+            int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+            ByteBuffer tail = readFully(in, fileSize - tailSize, tailSize);
+            int end = -1;
+            for (int i = tailSize - END_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIG) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return null;
+            }
+            int entryCount = Short.toUnsignedInt(tail.getShort(end + 10));
+            long cdSize = Integer.toUnsignedLong(tail.getInt(end + 12));
+            long cdOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+            if (cdOffset + cdSize > fileSize - tailSize + end) {
+                return null;
+            }
+            ByteBuffer cd = readFully(in, cdOffset, (int) cdSize);
+            Map<String, Entry> entries = new LinkedHashMap<>();
+            for (int i = 0; i < entryCount; i++) {
+                int pos = cd.position();
+                if (cd.getInt(pos) != CENTRAL_HEADER_SIG
+                    || (cd.getShort(pos + 8) & DATA_DESCRIPTOR_FLAG) != 0)
+                {
+                    return null;
+                }
+                int nameLength = Short.toUnsignedInt(cd.getShort(pos + 28));
+                int extraLength = Short.toUnsignedInt(cd.getShort(pos + 30));
+                int commentLength = Short.toUnsignedInt(cd.getShort(pos + 32));
+                byte[] name = new byte[nameLength];
+                cd.position(pos + CENTRAL_HEADER_SIZE);
+                cd.get(name);
+                long offset = Integer.toUnsignedLong(cd.getInt(pos + 42));
+                // local header may have extra field of its own
+                ByteBuffer localHeader = readFully(in, offset, LOCAL_HEADER_SIZE);
+                if (localHeader.getInt(0) != LOCAL_HEADER_SIG) {
+                    return null;
+                }
+                int localHeaderSize = LOCAL_HEADER_SIZE + Short.toUnsignedInt(localHeader.getShort(26)) +
+                    Short.toUnsignedInt(localHeader.getShort(28));
+                Entry entry = new Entry(name, Short.toUnsignedInt(cd.getShort(pos + 10)), cd.getInt(pos + 12),
+                    Integer.toUnsignedLong(cd.getInt(pos + 16)), Integer.toUnsignedLong(cd.getInt(pos + 20)),
+                    Integer.toUnsignedLong(cd.getInt(pos + 24)), offset, localHeaderSize);
+                entries.put(new String(name, StandardCharsets.UTF_8), entry);
+                cd.position(pos + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength);
+            }
+            return new Directory(entries, cdOffset);
+        } catch (IOException | RuntimeException e) {
+            debug("Failed to read " + jar + ", writing it anew: " + e);
+            return null;
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buf = new byte[bytes.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                length += deflater.deflate(buf, length, buf.length - length);
+            }
+            return Arrays.copyOf(buf, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // MS-DOS date and time: date in high 16 bits, time (2 seconds precision) in low 16 bits
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            time = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+            | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer readFully(FileChannel in, long position, int size) throws IOException {
+        ByteBuffer buf = buffer(size);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static FileChannel create(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE);
+    }
+
+    private Path tmpFile() {
+        return jar.resolveSibling(IncJC.TMP_INCJC_PREFIX + jar.getFileName());
+    }
+
+    private void replaceWith(Path tmpFile) {
+        try {
+            try {
+                Files.move(tmpFile, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, jar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            deleteQuietly(tmpFile);
+            throw new RuntimeException("Failed to replace " + jar, e);
+        }
+    }
+
+    private String stamp() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+            return attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return "-";
+        }
+    }
+
+    private String readStamp() {
+        try {
+            return Files.exists(stampFile) ? new String(Files.readAllBytes(stampFile), StandardCharsets.UTF_8) : "";
+        } catch (IOException e) {
+            debug("Failed to read " + stampFile + ": " + e);
+            return "";
+        }
+    }
+
+    private void writeStamp() {
+        try {
+            Files.write(stampFile, stamp().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write " + stampFile, e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            debug("Failed to delete " + file + ": " + e);
+        }
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+        final int localHeaderSize;
+
+        Entry(byte[] name, int method, int dosTime, long crc, long compressedSize, long size, long offset,
+            int localHeaderSize)
+        {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.localHeaderSize = localHeaderSize;
+        }
+
+        // local header and contents
+        long dataSize() {
+            return localHeaderSize + compressedSize;
+        }
+
+        Entry movedTo(long offset) {
+            return new Entry(name, method, dosTime, crc, compressedSize, size, offset, localHeaderSize);
+        }
+    }
+
+    private static class Directory {
+        final Map<String, Entry> entries;   // in central directory order
+        final long centralDirectoryOffset;
+
+        Directory(Map<String, Entry> entries, long centralDirectoryOffset) {
+            this.entries = entries;
+            this.centralDirectoryOffset = centralDirectoryOffset;
+        }
+    }
+}
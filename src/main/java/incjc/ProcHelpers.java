@@ -1,14 +1,20 @@
 package incjc;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.function.Consumer;
 import org.apache.commons.io.IOUtils;
 
 public abstract class ProcHelpers {
@@ -37,6 +43,35 @@ public abstract class ProcHelpers {
         return output.toString();
     }
 
+    // same as above, but output lines are passed to consumer as soon as they are read, instead of being collected;
+    // beginning of error output is reported if the process fails
+    public static void processOutputLines(String[] commandLine, Consumer<String> lineConsumer) {
+        Process p = null;
+        try {
+            p = new ProcessBuilder(commandLine).start();
+            OutputStream errors = new BoundedBuffer();
+            Thread errorPump = inputStreamPump(p.getErrorStream(), errors);
+            errorPump.start();
+            try (BufferedReader reader =
+                     new BufferedReader(new InputStreamReader(p.getInputStream(), Charset.defaultCharset())))
+            {
+                reader.lines().forEach(lineConsumer);
+            }
+            int retval = p.waitFor();
+            errorPump.join();
+            if (retval != 0) {
+                throw new RuntimeException(String.format("Nonzero return value of %d was returned by %s%n%s",
+                    retval, String.join(" ", Arrays.asList(commandLine)), errors));
+            }
+        } catch (IOException | UncheckedIOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (p != null) {
+                p.destroy();
+            }
+        }
+    }
+
     public static Thread inputStreamPump(InputStream from, OutputStream to) {
         return new Thread(() -> {
             try {
@@ -56,4 +91,21 @@ public abstract class ProcHelpers {
             }
         });
     }
+
+    // keeps first MAX_SIZE bytes written, discards the rest
+    private static class BoundedBuffer extends ByteArrayOutputStream {
+        private static final int MAX_SIZE = 16 * 1024;
+
+        @Override
+        public synchronized void write(int b) {
+            if (count < MAX_SIZE) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, Math.min(len, MAX_SIZE - count));
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package incjc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Splits a set of sources to be compiled into groups, which can be compiled by separate javac invocations. Sources
+ * depending on each other (strongly connected components of source dependency graph) are kept together; components
+ * are ordered into topological levels, so that each level depends on previous ones only, and components of the same
+ * level are distributed between partitions compiled in parallel.
+ *
+ * Dependencies are taken from metainfo, so they may be outdated for changed sources, and are unknown for new ones;
+ * a partition failing to compile due to that is handled by compiling all the sources together.
+ */
+public abstract class SourcePartitions {
+
+    // javac invocation overhead is assumed to be about the same as compiling that many sources
+    static final int MIN_PARTITION_SOURCES = 50;
+
+    // returns levels of partitions, or a single level with a single partition if splitting is not worth it
+    public static List<List<Set<String>>> plan(MetaInfo metaInfo, Set<String> sources, int maxPartitions) {
+        List<List<Set<String>>> single = Collections.singletonList(Collections.singletonList(sources));
+        if (maxPartitions < 2 || sources.size() < 2 * MIN_PARTITION_SOURCES) {
+            return single;
+        }
+
+        List<String> sourceList = new ArrayList<>(sources);
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < sourceList.size(); i++) {
+            ids.put(sourceList.get(i), i);
+        }
+        int[][] dependencies = sourceDependencies(metaInfo, sourceList, ids);
+        int[] components = stronglyConnectedComponents(dependencies);
+        int componentCount = Arrays.stream(components).max().orElse(-1) + 1;
+
+        // level of component is the length of the longest dependency chain below it; Tarjan's algorithm numbers
+        // components in reverse topological order, so that dependencies of a component have lower numbers
+        int[] levels = new int[componentCount];
+        List<List<Integer>> componentSources = new ArrayList<>();
+        for (int c = 0; c < componentCount; c++) {
+            componentSources.add(new ArrayList<>());
+        }
+        for (int s = 0; s < sourceList.size(); s++) {
+            componentSources.get(components[s]).add(s);
+        }
+        int levelCount = 0;
+        for (int c = 0; c < componentCount; c++) {
+            for (int s : componentSources.get(c)) {
+                for (int dep : dependencies[s]) {
+                    if (components[dep] != c) {
+                        levels[c] = Math.max(levels[c], levels[components[dep]] + 1);
+                    }
+                }
+            }
+            levelCount = Math.max(levelCount, levels[c] + 1);
+        }
+
+        List<List<Integer>> levelComponents = new ArrayList<>();
+        for (int l = 0; l < levelCount; l++) {
+            levelComponents.add(new ArrayList<>());
+        }
+        for (int c = 0; c < componentCount; c++) {
+            levelComponents.get(levels[c]).add(c);
+        }
+
+        // components of each level are spread between partitions, largest first, each to the smallest partition
+        List<List<Set<String>>> result = new ArrayList<>();
+        long estimatedCost = 0;
+        boolean split = false;
+        for (List<Integer> comps : levelComponents) {
+            int levelSources = comps.stream().mapToInt(c -> componentSources.get(c).size()).sum();
+            int partitionCount = Math.max(1, Math.min(Math.min(maxPartitions, comps.size()),
+                levelSources / MIN_PARTITION_SOURCES));
+            List<Set<String>> partitions = new ArrayList<>();
+            for (int p = 0; p < partitionCount; p++) {
+                partitions.add(new HashSet<>());
+            }
+            comps.sort(Comparator.comparingInt((Integer c) -> componentSources.get(c).size()).reversed());
+            for (int c : comps) {
+                Set<String> smallest = Collections.min(partitions, Comparator.comparingInt(Set::size));
+                componentSources.get(c).forEach(s -> smallest.add(sourceList.get(s)));
+            }
+            // consecutive levels not split are compiled together
+            List<Set<String>> prevPartitions = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (partitionCount == 1 && prevPartitions != null && prevPartitions.size() == 1) {
+                prevPartitions.get(0).addAll(partitions.get(0));
+                estimatedCost += levelSources;
+            } else {
+                result.add(partitions);
+                estimatedCost += partitions.stream().mapToInt(Set::size).max().orElse(0) + MIN_PARTITION_SOURCES;
+            }
+            split |= partitionCount > 1;
+        }
+        return split && estimatedCost < sources.size() ? result : single;
+    }
+
+    // source index -> indices of sources it depends on
+    private static int[][] sourceDependencies(MetaInfo metaInfo, List<String> sourceList, Map<String, Integer> ids) {
+        int[][] result = new int[sourceList.size()][];
+        for (int s = 0; s < sourceList.size(); s++) {
+            Set<Integer> deps = new HashSet<>();
+            for (String cls : metaInfo.classesBySources(Collections.singleton(sourceList.get(s)))) {
+                for (String dependency : metaInfo.deps.dependenciesOf(cls)) {
+                    Integer dep = ids.get(metaInfo.classes.get(dependency));
+                    if (dep != null && dep != s) {
+                        deps.add(dep);
+                    }
+                }
+            }
+            result[s] = deps.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return result;
+    }
+
+    // Tarjan's algorithm without recursion, as dependency chains may be deep; returns component index of each node
+    private static int[] stronglyConnectedComponents(int[][] edges) {
+        int n = edges.length;
+        int[] index = new int[n];
+        int[] lowLink = new int[n];
+        int[] component = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] callStack = new int[n];
+        int[] edgePos = new int[n];
+        int nextIndex = 0;
+        int nextComponent = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            int depth = 0;
+            callStack[depth] = root;
+            index[root] = lowLink[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+            edgePos[root] = 0;
+            while (depth >= 0) {
+                int v = callStack[depth];
+                if (edgePos[v] < edges[v].length) {
+                    int w = edges[v][edgePos[v]++];
+                    if (index[w] == -1) {
+                        index[w] = lowLink[w] = nextIndex++;
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        edgePos[w] = 0;
+                        callStack[++depth] = w;
+                    } else if (onStack[w]) {
+                        lowLink[v] = Math.min(lowLink[v], index[w]);
+                    }
+                } else {
+                    if (lowLink[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--stackSize];
+                            onStack[w] = false;
+                            component[w] = nextComponent;
+                        } while (w != v);
+                        nextComponent++;
+                    }
+                    depth--;
+                    if (depth >= 0) {
+                        int parent = callStack[depth];
+                        lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+                    }
+                }
+            }
+        }
+        return component;
+    }
+}
@@ -0,0 +1,78 @@
+package incjc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+public class SourceState {
+    // files modified that recently may still change within the same timestamp granularity
+    static final long RACY_MTIME_WINDOW_MILLIS = 2000;
+
+    public final String hash;
+    public final long size;
+    public final long mtime; // -1 if not reliable, so that next check falls back to hashing
+
+    private static final String FIELD_SEP = ",";
+
+    public SourceState(String hash, long size, long mtime) {
+        this.hash = hash;
+        this.size = size;
+        this.mtime = mtime;
+    }
+
+    public static SourceState of(Path file) {
+        BasicFileAttributes attrs = readAttributes(file);
+        return of(file, attrs);
+    }
+
+    public static SourceState of(Path file, BasicFileAttributes attrs) {
+        return of(hash(file, attrs.size()), attrs);
+    }
+
+    // hash may be known without reading the file, e.g. from git index
+    public static SourceState of(String hash, BasicFileAttributes attrs) {
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (System.currentTimeMillis() - mtime < RACY_MTIME_WINDOW_MILLIS) {
+            mtime = -1;
+        }
+        return new SourceState(hash, attrs.size(), mtime);
+    }
+
+    public boolean sameStat(BasicFileAttributes attrs) {
+        return mtime != -1 && size == attrs.size() && mtime == attrs.lastModifiedTime().toMillis();
+    }
+
+    public static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read attributes of " + file, e);
+        }
+    }
+
+    // same as git blob id, so that hashes of files git has seen already are taken from its index (see GitSources);
+    // a file modified while being hashed gets a bogus hash, and is hashed again next time, as its mtime changes
+    public static String hash(Path file, long size) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return GitRepository.blobId(in, size);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to calculate hash for " + file, e);
+        }
+    }
+
+    // older metainfo stored hash only
+    public static SourceState parse(String s) {
+        String[] parts = s.split(FIELD_SEP);
+        if (parts.length < 3) {
+            return new SourceState(parts[0], -1, -1);
+        }
+        return new SourceState(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+    }
+
+    @Override
+    public String toString() {
+        return hash + FIELD_SEP + size + FIELD_SEP + mtime;
+    }
+}
@@ -0,0 +1,214 @@
+package incjc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Sources of the source tree found using a snapshot of its directories: names of sources and subdirectories of each
+ * directory, together with directory modification time, kept in dirs.txt of metainfo directory. Directory is only
+ * listed if its modification time has changed since the snapshot was taken (that is, some entries were created,
+ * deleted or renamed in it), otherwise its entries are taken from the snapshot; so only directories are stat-ed, not
+ * files. Subtrees are walked in parallel.
+ *
+ * Directories modified within timestamp granularity before the snapshot is taken are listed next time as well, same as
+ * files are hashed (see SourceState).
+ */
+public class SourceTree {
+
+    private static final String SNAPSHOT_FILE = "dirs.txt";
+    private static final String FIELD_SEP = "->";
+    private static final String ENTRY_PREFIX = "\t";
+    private static final String SUBDIR_SUFFIX = "/";
+    private static final String ROOT = ".";
+
+    private final Map<String, Dir> dirs = new ConcurrentHashMap<>();   // relative path -> entries
+    private final Set<String> sources = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    private static class Dir {
+        final long mtime;   // -1 if not reliable
+        final List<String> sources;
+        final List<String> subdirs;
+
+        Dir(long mtime, List<String> sources, List<String> subdirs) {
+            this.mtime = mtime;
+            this.sources = sources;
+            this.subdirs = subdirs;
+        }
+    }
+
+    // snapshot saved in metainfo directory given (if any) is used
+    public static SourceTree scan(String sourceDir, String metaDir) {
+        SourceTree tree = new SourceTree();
+        Map<String, Dir> snapshot = readSnapshot(metaDir);
+        if (snapshot.isEmpty()) {
+            tree.changed.set(true);
+        }
+        Path root = Paths.get(sourceDir);
+        if (!Files.isDirectory(root)) {
+            throw new RuntimeException("Failed to find source files: " + sourceDir + " is not a directory");
+        }
+        ForkJoinPool.commonPool().invoke(tree.new ScanTask(root, ROOT, snapshot));
+        if (snapshot.size() != tree.dirs.size()) {
+            tree.changed.set(true);   // some directories deleted
+        }
+        return tree;
+    }
+
+    public Set<String> sources() {
+        return sources;
+    }
+
+    // should be called once a build succeeds; nothing is written if all directories are the same as in the snapshot
+    public void save(String metaDir) {
+        Path file = Paths.get(metaDir, SNAPSHOT_FILE);
+        if (!changed.get() && Files.exists(file)) {
+            return;
+        }
+        Path tmpFile = Paths.get(metaDir, SNAPSHOT_FILE + ".tmp");
+        try {
+            try (PrintWriter w = new PrintWriter(tmpFile.toFile())) {
+                new TreeMap<>(dirs).forEach((path, dir) -> {
+                    w.println(path + FIELD_SEP + dir.mtime);
+                    dir.sources.forEach(name -> w.println(ENTRY_PREFIX + name));
+                    dir.subdirs.forEach(name -> w.println(ENTRY_PREFIX + name + SUBDIR_SUFFIX));
+                });
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save source tree snapshot to " + file, e);
+        }
+    }
+
+    private static Map<String, Dir> readSnapshot(String metaDir) {
+        Path file = Paths.get(metaDir, SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Dir> result = new HashMap<>();
+        try {
+            Dir dir = null;
+            for (String line : Files.readAllLines(file)) {
+                if (line.startsWith(ENTRY_PREFIX)) {
+                    String name = line.substring(ENTRY_PREFIX.length());
+                    if (name.endsWith(SUBDIR_SUFFIX)) {
+                        dir.subdirs.add(name.substring(0, name.length() - SUBDIR_SUFFIX.length()));
+                    } else {
+                        dir.sources.add(name);
+                    }
+                } else {
+                    int sep = line.lastIndexOf(FIELD_SEP);
+                    dir = new Dir(Long.parseLong(line.substring(sep + FIELD_SEP.length())), new ArrayList<>(),
+                        new ArrayList<>());
+                    result.put(line.substring(0, sep), dir);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            debug("Failed to read " + file + ", scanning all directories: " + e);
+            return Collections.emptyMap();
+        }
+        return result;
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String path;
+        private final Map<String, Dir> snapshot;
+
+        ScanTask(Path dir, String path, Map<String, Dir> snapshot) {
+            this.dir = dir;
+            this.path = path;
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected void compute() {
+            BasicFileAttributes attrs = attributesIfExists(dir);
+            if (attrs == null || !attrs.isDirectory()) {
+                return; // deleted while scanning
+            }
+            long mtime = attrs.lastModifiedTime().toMillis();
+            Dir prev = snapshot.get(path);
+            Dir current;
+            if (prev != null && prev.mtime != -1 && prev.mtime == mtime) {
+                current = prev;
+                BuildReport.count("directoriesReused", 1);
+            } else {
+                current = list(System.currentTimeMillis() - mtime < SourceState.RACY_MTIME_WINDOW_MILLIS ? -1 : mtime);
+                changed.set(true);
+                BuildReport.count("directoriesListed", 1);
+            }
+            dirs.put(path, current);
+            for (String name : current.sources) {
+                sources.add(dir.resolve(name).toString());
+            }
+            invokeAll(current.subdirs.stream()
+                .map(name -> new ScanTask(dir.resolve(name), path.equals(ROOT) ? name : path + File.separator + name,
+                    snapshot))
+                .collect(Collectors.toList()));
+        }
+
+        // symbolic links are not followed, same as by IncJC.findAllSources
+        private Dir list(long mtime) {
+            debug("Listing directory " + dir);
+            List<String> sources = new ArrayList<>();
+            List<String> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    BasicFileAttributes attrs = attributesIfExists(child);
+                    String name = child.getFileName().toString();
+                    if (attrs == null) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        subdirs.add(name);
+                    } else if (attrs.isRegularFile() && name.endsWith(".java")) {
+                        sources.add(name);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to list directory " + dir, e);
+            }
+            return new Dir(mtime, sources, subdirs);
+        }
+    }
+
+    @Nullable
+    private static BasicFileAttributes attributesIfExists(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package incjc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+// Plain text format: one "key->value" line per map entry / dependency graph edge
+class TextMetaInfoStore implements MetaInfoStore {
+
+    private static final String CLASSES_FILE = "classes.txt";
+    private static final String SOURCES_FILE = "sources.txt";
+    private static final String DEPS_FILE = "deps.txt";
+    private static final String ABI_FILE = "abi.txt"; // optional, absent in metainfo saved by older versions
+    private static final String GENERATED_FILE = "generated.txt"; // optional as well
+    private static final String FIELD_SEP = "->";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @Override
+    public boolean existsIn(Path dir) {
+        return Files.exists(dir.resolve(CLASSES_FILE))
+            && Files.exists(dir.resolve(SOURCES_FILE))
+            && Files.exists(dir.resolve(DEPS_FILE));
+    }
+
+    @Override
+    public void read(Path dir, MetaInfo target) throws IOException {
+        readMapFromFile(dir.resolve(CLASSES_FILE), target.classes::put);
+        readMapFromFile(dir.resolve(SOURCES_FILE), (src, state) -> target.sources.put(src, SourceState.parse(state)));
+        readMapFromFile(dir.resolve(DEPS_FILE), target.deps::addEdge);
+        if (Files.exists(dir.resolve(ABI_FILE))) {
+            readMapFromFile(dir.resolve(ABI_FILE), target.abiHashes::put);
+        }
+        if (Files.exists(dir.resolve(GENERATED_FILE))) {
+            readMapFromFile(dir.resolve(GENERATED_FILE), target.generated::addEdge);
+        }
+    }
+
+    @Override
+    public void write(Path dir, MetaInfo source) throws IOException {
+        writeMapToFile(source.classes, dir.resolve(CLASSES_FILE + TMP_SUFFIX));
+        writeMapToFile(source.sources, dir.resolve(SOURCES_FILE + TMP_SUFFIX));
+        writeDepsToFile(source.deps, dir.resolve(DEPS_FILE + TMP_SUFFIX));
+        writeMapToFile(source.abiHashes, dir.resolve(ABI_FILE + TMP_SUFFIX));
+        writeDepsToFile(source.generated, dir.resolve(GENERATED_FILE + TMP_SUFFIX));
+        for (String file : new String[]{CLASSES_FILE, SOURCES_FILE, DEPS_FILE, ABI_FILE, GENERATED_FILE}) {
+            Files.move(dir.resolve(file + TMP_SUFFIX), dir.resolve(file),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    @Override
+    public void delete(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(CLASSES_FILE));
+        Files.deleteIfExists(dir.resolve(SOURCES_FILE));
+        Files.deleteIfExists(dir.resolve(DEPS_FILE));
+        Files.deleteIfExists(dir.resolve(ABI_FILE));
+        Files.deleteIfExists(dir.resolve(GENERATED_FILE));
+    }
+
+    @Override
+    public long size(Path dir) throws IOException {
+        return Files.size(dir.resolve(CLASSES_FILE)) + Files.size(dir.resolve(SOURCES_FILE)) + Files.size(dir.resolve(DEPS_FILE));
+    }
+
+    private static void readMapFromFile(Path filePath, BiConsumer<String, String> consumer) throws IOException {
+        try (Stream<String> lines = Files.lines(filePath)) {
+            lines.forEach(line -> {
+                if (!line.isEmpty()) {
+                    String[] parts = line.split(FIELD_SEP);
+                    consumer.accept(parts[0], parts[1]);
+                }
+            });
+        }
+    }
+
+    private static void writeMapToFile(Map<String, ?> map, Path filePath) throws IOException {
+        try (PrintWriter w = new PrintWriter(filePath.toFile())) {
+            map.forEach((k, v) -> w.println(k + FIELD_SEP + v));
+        }
+    }
+
+    private static void writeDepsToFile(DependencyGraph deps, Path filePath) throws IOException {
+        try (PrintWriter w = new PrintWriter(filePath.toFile())) {
+            deps.forEach((cls1, set) -> set.forEach(cls2 -> w.println(cls1 + FIELD_SEP + cls2)));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package incjc;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.jetbrains.annotations.Nullable;
+
+import static incjc.Debug.debug;
+
+/*
+ * Continuous build: source tree is watched with WatchService, and paths of changed / created / deleted sources are
+ * passed to IncJC.compileChanges, so that neither the tree is walked nor unchanged files are hashed. Events are
+ * collected until there are none for a debounce interval, so that a save of several files results in a single build.
+ *
+ * If the OS reports lost events (overflow), or a build fails unexpectedly, next build scans the whole tree.
+ */
+public class Watcher {
+
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+
+    private final Path sourceDir;
+    private final String classpath;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+    private Watcher(Path sourceDir, String classpath) throws IOException {
+        this.sourceDir = sourceDir;
+        this.classpath = classpath;
+        this.watchService = sourceDir.getFileSystem().newWatchService();
+    }
+
+    // INCJC_WATCH_DEBOUNCE sets number of milliseconds without changes after which build starts; never returns
+    public static void watch(String classpath, String sourceDir) {
+        String debounceEnv = System.getenv("INCJC_WATCH_DEBOUNCE");
+        long debounceMillis = debounceEnv != null ? Long.parseLong(debounceEnv) : DEFAULT_DEBOUNCE_MILLIS;
+        Path absSourceDir = Paths.get(sourceDir).toAbsolutePath();
+        String absClasspath = Paths.get(classpath).toAbsolutePath().toString();
+        MetaInfo.enableCache();
+        try {
+            Watcher watcher = new Watcher(absSourceDir, absClasspath);
+            // changes made during initial build are reported to the first batch
+            watcher.registerTree(absSourceDir, new HashSet<>());
+            watcher.run(debounceMillis);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to watch " + absSourceDir, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(long debounceMillis) throws IOException, InterruptedException {
+        Set<String> changedPaths = new HashSet<>();
+        boolean scan = true;
+        while (true) {
+            if (scan || !changedPaths.isEmpty()) {
+                int retval = build(scan ? null : changedPaths);
+                // changes are not recorded in metainfo by a failed build, so they are built again with next ones
+                if (retval == 0) {
+                    scan = false;
+                    changedPaths.clear();
+                } else if (retval == IncJC.RETVAL_UNEXPECTED_FAILURE) {
+                    scan = true;
+                }
+                System.out.println("Watching for changes in " + sourceDir);
+            }
+
+            boolean overflow = false;
+            WatchKey key = watchService.take();
+            while (key != null) {
+                overflow |= processEvents(key, changedPaths);
+                key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+            }
+            if (overflow) {
+                System.out.println("Some file system events were lost, rescanning " + sourceDir);
+                registerTree(sourceDir, new HashSet<>());
+                scan = true;
+            }
+        }
+    }
+
+    // returns exit code, same as IncJC.run; null changed paths stand for full scan
+    private int build(@Nullable Set<String> changedPaths) {
+        try {
+            String metaPath = IncJC.metaInfoPathForSourceDir(sourceDir.toString());
+            boolean success = changedPaths == null || !MetaInfo.existsIn(metaPath)
+                ? IncJC.compile(classpath, sourceDir.toString())
+                : IncJC.compileChanges(sourceDir.toString(), classpath, metaPath, changedPaths);
+            System.out.println(success ? "Build succeeded." : "Build failed.");
+            return success ? 0 : IncJC.RETVAL_COMPILATION_ERROR;
+        } catch (RuntimeException e) {
+            System.err.println("FAILURE: " + e.getMessage());
+            e.printStackTrace(System.err);
+            MetaInfo.clearCache();
+            return IncJC.RETVAL_UNEXPECTED_FAILURE;
+        }
+    }
+
+    // returns true if events were lost
+    private boolean processEvents(WatchKey key, Set<String> changedPaths) throws IOException {
+        Path dir = watchedDirs.get(key);
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            debug("Watch event " + event.kind() + " " + path);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                registerTree(path, changedPaths);
+            } else if (isSource(path) || !Files.exists(path) && watchedDirs.containsValue(path)) {
+                // other deleted paths without .java suffix, e.g. editor swap and backup files, are not sources
+                changedPaths.add(path.toString());
+            }
+        }
+        if (!key.reset()) {
+            // directory deleted or moved, its key may be invalidated before its parent reports it
+            watchedDirs.remove(key);
+            if (dir != null) {
+                changedPaths.add(dir.toString());
+            }
+        }
+        return overflow;
+    }
+
+    // sources found in directories registered are added to changed paths, as their creation may not be reported
+    private void registerTree(Path root, Set<String> changedPaths) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isSource(file)) {
+                    changedPaths.add(file.toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean isSource(Path path) {
+        return path.getFileName().toString().endsWith(".java");
+    }
+}